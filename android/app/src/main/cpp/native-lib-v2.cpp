@@ -5,214 +5,2767 @@
 #include <vector>
 #include <atomic>
 #include <mutex>
+#include <condition_variable>
 #include <chrono>
+#include <algorithm>
+#include <cstring>
+#include <cstdlib>
+#include <numeric>
+#include <cstdarg>
+#include <cstdio>
+#include <cerrno>
+#include <sched.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/resource.h>
+#include <sys/syscall.h>
+#include <linux/memfd.h>
 
 #include "llama.cpp/include/llama.h"
 #include "llama.cpp/common/common.h"
 #include "llama.cpp/common/sampling.h"
+#include "llama.cpp/ggml/include/ggml-cpu.h"
+#include "llama.cpp/ggml/include/gguf.h"
 
 #define TAG "LLAMA_JNI"
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
 
+// Sequence 0 is the working chat; the system prompt snapshot lives in its own sequence
+// so it survives resets and can be copied back without decoding it again.
+// Side requests (titles, summaries, a second chat) run next to it in their own sequences.
+static const llama_seq_id SEQ_CHAT = 0;
+static const llama_seq_id SEQ_SYSTEM = 1;
+static const llama_seq_id SEQ_SIDE_FIRST = 2;
+static const int N_SIDE_SEQS = 4;
+static const int N_SEQ_MAX = SEQ_SIDE_FIRST + N_SIDE_SEQS;
+// Token budget of a request whose config leaves it unset
+static const int N_PREDICT = 1024;
+
+// Token text is handed to Java once this many bytes are pending, or after STREAM_FLUSH_MS
+static const int STREAM_FLUSH_BYTES = 64;
+static const int STREAM_FLUSH_MS = 30;
+static const int STATUS_INTERVAL_MS = 500;
+
+// Embedding context: tokens and texts packed into one decode; longer texts are truncated
+static const int EMBD_N_BATCH = 1024;
+static const int EMBD_N_SEQ = 32;
+
+struct gen_slot;
+
+// Request settings in the order GenerationConfig.toNative writes them
+enum config_index {
+    CONFIG_MAX_TOKENS,
+    CONFIG_DEADLINE_MS,
+    CONFIG_FIRST_TOKEN_DEADLINE_MS,
+    CONFIG_SHORTEN,
+    CONFIG_PROMPT_LOOKUP,
+    CONFIG_TEMPERATURE,
+    CONFIG_TOP_K,
+    CONFIG_TOP_P,
+    CONFIG_MIN_P,
+    CONFIG_REPEAT_PENALTY,
+    CONFIG_SEED,
+    CONFIG_COUNT
+};
+
+// Why an answer ended, in GenerationMetrics.StopReason order
+enum stop_reason {
+    STOP_END_OF_TURN,
+    STOP_TOKEN_BUDGET,
+    STOP_DEADLINE,
+    STOP_SHORTENED,
+};
+
+// Resolved once in JNI_OnLoad; every request reuses them instead of looking them up again
+static JavaVM * g_vm = nullptr;
+static struct {
+    jclass cls = nullptr;
+    jmethodID on_bytes = nullptr;
+    jmethodID on_status = nullptr;
+    jmethodID on_context_shift = nullptr;
+    jmethodID on_complete = nullptr;
+    jmethodID on_error = nullptr;
+    jmethodID on_finished = nullptr;
+    jmethodID on_metrics = nullptr;
+} g_cb;
+
+// Per-request numbers handed to Java, in the order GenerationMetrics.fromNative reads them
+enum metric_index {
+    METRIC_TTFT_MS,
+    METRIC_PROMPT_TOKENS,
+    METRIC_PROMPT_MS,
+    METRIC_DECODE_TOKENS,
+    METRIC_DECODE_MS,
+    METRIC_SAMPLE_MS,
+    METRIC_KV_CELLS,
+    METRIC_PEAK_RSS_KB,
+    METRIC_STOP_REASON,
+    METRIC_COUNT
+};
+
+// Slots answering the same request (regenerate candidates); completion is reported once, by the last one
+struct gen_group {
+    int pending = 0;
+    std::string error;
+    // Candidate 0's metrics, reported with the group's completion
+    std::vector<double> metrics;
+};
+
 struct llama_context_wrapper {
     llama_model * model = nullptr;
     llama_context * ctx = nullptr;
     const struct llama_vocab * vocab = nullptr;
-    std::atomic<bool> stop_requested{false};
     int n_batch = 512;
+    int n_ctx = 4096;
+    // Tuned compute threads for single-token steps and prompt chunks, and the cores they run on
+    int n_threads = 4;
+    int n_threads_batch = 4;
+    std::vector<int> cpus;
+    // Persistent compute threads for single-token steps and for prompt chunks, parked while idle
+    ggml_threadpool * pool = nullptr;
+    ggml_threadpool * pool_batch = nullptr;
+    ggml_type type_k = GGML_TYPE_F16;
+    ggml_type type_v = GGML_TYPE_F16;
+    // Tokens whose KV currently lives in sequence 0, in position order
+    std::vector<llama_token> session_tokens;
+    // Tokens of the system prompt snapshot held in SEQ_SYSTEM
+    std::vector<llama_token> system_tokens;
+
+    // Context shifting: tokens evicted from SEQ_CHAT right after its first n_shift_keep
+    // tokens. Kept so later prompts that still contain them map onto the shifted cache.
+    std::vector<llama_token> evicted_tokens;
+    int n_shift_keep = 0;
+    int n_keep_recent = 2048;
+
+    // Optional speculative draft model sharing the target's tokenizer
+    llama_model * draft_model = nullptr;
+    llama_context * draft_ctx = nullptr;
+    llama_batch draft_batch = {};
+    std::vector<llama_token> draft_tokens;
+    int n_draft = 8;
+    std::atomic<int64_t> n_drafted{0};
+    std::atomic<int64_t> n_accepted{0};
+
+    // LoRA adapters loaded for this model and the scale the context applies each with (0: not
+    // applied). Guarded by ctx_mutex.
+    std::vector<llama_adapter_lora *> loras;
+    std::vector<float> lora_scales;
+
+    // Embeddings run in a context of their own on the same weights, created on first use, so
+    // they never touch the chat KV or wait for the worker. Java serializes nativeEmbed calls.
+    llama_context * embd_ctx = nullptr;
+    enum llama_pooling_type embd_pooling = LLAMA_POOLING_TYPE_UNSPECIFIED;
+    llama_batch embd_batch = {};
+
+    // Scheduler: each running request is a slot with its own sequence. A worker thread owned
+    // by the model drives llama_decode for all of them; requests are queued into `slots`.
+    // ctx_mutex guards the context and KV, sched_mutex the slot list.
+    std::mutex ctx_mutex;
+    std::mutex sched_mutex;
+    // Set when a failed reconfigure left no context; new requests are refused until unload
+    std::atomic<bool> ctx_lost{false};
+    std::condition_variable sched_cv;
+    std::vector<gen_slot *> slots;
+    bool closing = false;
+    std::thread worker;
+    // Allocated once per model: the shared batch and one sampler per sequence, reset per request
+    // and only rebuilt when a request asks for different sampling parameters
+    llama_batch batch = {};
+    common_sampler * samplers[N_SEQ_MAX] = {};
+    common_params_sampling sampler_params[N_SEQ_MAX];
+    // Slots with tokens in the batch being decoded; only touched by the worker thread
+    std::vector<gen_slot *> batch_slots;
+
+    // Our own mapping of the model file, mlocked by the warm-up; it pins the same page cache
+    // pages llama.cpp's mapping reads from
+    void * locked_map = nullptr;
+    size_t locked_size = 0;
+    // Set before unloading so a warm-up still paging the weights in gives up early
+    std::atomic<bool> warmup_cancel{false};
+};
+
+// One generation request. The chat slot decodes into SEQ_CHAT and keeps the session cache;
+// a side slot borrows a side sequence and drops it once finished.
+struct gen_slot {
+    llama_seq_id seq = SEQ_CHAT;
+    bool prompt_lookup = false;
+    // Part of the conversation request (chat sequence or its candidates); nativeStop targets these
+    bool chat = false;
+    std::atomic<bool> stop{false};
+
+    jobject cb = nullptr;
+
+    // Regenerate candidates: followers start from a copy of the leader's sequence once its
+    // prompt is decoded. Candidate 0 is the leader.
+    int candidate = 0;
+    gen_slot * fork_of = nullptr;
+    std::vector<gen_slot *> forks;
+    gen_group * group = nullptr;
+
+    // Borrowed from the wrapper's per-sequence samplers, set up with sparams on admission
+    common_sampler * sampler = nullptr;
+    common_params_sampling sparams;
+
+    // Budget from the request's GenerationConfig. Deadlines count from submission, 0 is none.
+    // With `shorten` the answer ends at the first sentence break once the budget is nearly spent.
+    int n_budget = N_PREDICT;
+    double deadline_ms = 0;
+    double first_token_deadline_ms = 0;
+    bool shorten = false;
+    stop_reason reason = STOP_END_OF_TURN;
+    // Tokenized by the worker on admission, so submitting a request costs the caller nothing
+    std::string text;
+    std::vector<llama_token> prompt;
+    size_t n_prompt_done = 0;
+    // Tokens in this slot's sequence: the session cache for the chat, side_tokens otherwise
+    std::vector<llama_token> side_tokens;
+    std::vector<llama_token> * cache = nullptr;
+
+    bool admitted = false;
+    // `id` is sampled and accepted by the sampler but not yet decoded
+    bool has_id = false;
+    llama_token id = 0;
+    std::vector<llama_token> draft;
+    int i_batch = -1;
+    int n_batch = 0;
+    int n_remain = N_PREDICT;
+    // Answer room admit_chat left for a chat next to its prompt
+    int n_reserved = 0;
+    int n_generated = 0;
+    std::chrono::steady_clock::time_point next_status;
+    int64_t n_lookup_drafted = 0;
+    int64_t n_lookup_accepted = 0;
+    std::chrono::high_resolution_clock::time_point start_time = std::chrono::high_resolution_clock::now();
+
+    // Metrics. Decode time comes from llama's perf counters around each batch the slot was in,
+    // so a batch shared by several requests counts fully for each of them.
+    std::chrono::steady_clock::time_point t_submit = std::chrono::steady_clock::now();
+    double ttft_ms = 0;
+    double prompt_ms = 0;
+    double decode_ms = 0;
+    double sample_ms = 0;
+    int n_prompt_eval = 0;
+
+    // Produced while the context is locked, handed to Java right after the step
+    std::vector<llama_token> out;
+
+    // This slot's region of the request's direct ByteBuffer, used as a ring of UTF-8 bytes.
+    // Pieces are appended without any JNI call; Java is signalled per flush, not per token.
+    uint8_t * ring = nullptr;
+    int ring_offset = 0;
+    int ring_cap = 0;
+    int ring_head = 0;
+    int ring_pending = 0;
+    std::chrono::steady_clock::time_point last_flush;
+    std::vector<std::string> statuses;
+    int n_shifted = 0;
+    bool finished = false;
+    std::string error;
+};
+
+// Length of the shared prefix between what is cached and the new prompt
+static size_t common_prefix_len(const std::vector<llama_token> & a, const std::vector<llama_token> & b) {
+    size_t n = std::min(a.size(), b.size());
+    size_t i = 0;
+    while (i < n && a[i] == b[i]) i++;
+    return i;
+}
+
+// Drop the working chat and start it again from the system prompt snapshot.
+// With a unified KV cache the copy only tags the existing cells, nothing is recomputed.
+static void reset_session(llama_context_wrapper * wrapper) {
+    llama_memory_t mem = llama_get_memory(wrapper->ctx);
+    llama_memory_seq_rm(mem, SEQ_CHAT, -1, -1);
+    wrapper->session_tokens.clear();
+    wrapper->evicted_tokens.clear();
+    if (!wrapper->system_tokens.empty()) {
+        llama_memory_seq_cp(mem, SEQ_SYSTEM, SEQ_CHAT, -1, -1);
+        wrapper->session_tokens = wrapper->system_tokens;
+    }
+}
+
+
+// How many leading tokens survive a context shift: the system prompt when the
+// sequence starts with it, otherwise just the BOS token.
+static int shift_keep_for(const llama_context_wrapper * wrapper, const std::vector<llama_token> & seq) {
+    const auto & sys = wrapper->system_tokens;
+    if (!wrapper->evicted_tokens.empty()) return wrapper->n_shift_keep;
+    if (!sys.empty() && seq.size() > sys.size() && std::equal(sys.begin(), sys.end(), seq.begin())) {
+        return (int) sys.size();
+    }
+    return std::min<int>(1, (int) seq.size());
+}
+
+// Evicts n_discard cached tokens right after the first n_keep and slides the rest back,
+// so generation can continue past n_ctx without decoding anything again.
+static bool shift_context(llama_context_wrapper * wrapper, int n_keep, int n_discard) {
+    llama_memory_t mem = llama_get_memory(wrapper->ctx);
+    const int n_past = (int) wrapper->session_tokens.size();
+    n_discard = std::min(n_discard, n_past - n_keep);
+    if (n_discard <= 0 || !llama_memory_can_shift(mem)) return false;
+
+    llama_memory_seq_rm(mem, SEQ_CHAT, n_keep, n_keep + n_discard);
+    llama_memory_seq_add(mem, SEQ_CHAT, n_keep + n_discard, n_past, -n_discard);
+
+    auto first = wrapper->session_tokens.begin() + n_keep;
+    wrapper->evicted_tokens.insert(wrapper->evicted_tokens.end(), first, first + n_discard);
+    wrapper->session_tokens.erase(first, first + n_discard);
+    wrapper->n_shift_keep = n_keep;
+
+    LOGD("shift_context: kept %d, discarded %d, %zu tokens remain", n_keep, n_discard, wrapper->session_tokens.size());
+    return true;
+}
+
+static void free_draft(llama_context_wrapper * wrapper) {
+    if (wrapper->draft_ctx) {
+        llama_batch_free(wrapper->draft_batch);
+        wrapper->draft_batch = {};
+        llama_free(wrapper->draft_ctx);
+    }
+    if (wrapper->draft_model) llama_model_free(wrapper->draft_model);
+    wrapper->draft_ctx = nullptr;
+    wrapper->draft_model = nullptr;
+    wrapper->draft_tokens.clear();
+}
+
+// A draft can only propose for the target if both map ids to the same token text
+static bool vocabs_compatible(const llama_vocab * a, const llama_vocab * b) {
+    if (llama_vocab_type(a) != llama_vocab_type(b)) return false;
+    if (llama_vocab_bos(a) != llama_vocab_bos(b) || llama_vocab_eos(a) != llama_vocab_eos(b)) return false;
+
+    const int n_a = llama_vocab_n_tokens(a);
+    const int n_b = llama_vocab_n_tokens(b);
+    if (std::abs(n_a - n_b) > 128) return false;
+
+    for (int i = 0; i < std::min(n_a, n_b); i++) {
+        if (strcmp(llama_vocab_get_text(a, i), llama_vocab_get_text(b, i)) != 0) return false;
+    }
+    return true;
+}
+
+// Brings the draft context up to `prefix` (reusing its cached prefix) and greedily
+// proposes up to n_draft tokens that follow it. Returns an empty draft on any failure.
+static std::vector<llama_token> draft_propose(llama_context_wrapper * wrapper, const std::vector<llama_token> & prefix, int n_draft) {
+    std::vector<llama_token> result;
+    llama_context * dctx = wrapper->draft_ctx;
+    llama_memory_t mem = llama_get_memory(dctx);
+    llama_batch & batch = wrapper->draft_batch;
+    const llama_vocab * dvocab = llama_model_get_vocab(wrapper->draft_model);
+    const int n_vocab = llama_vocab_n_tokens(dvocab);
+
+    for (llama_token t : prefix) {
+        if (t < 0 || t >= n_vocab) return result;
+    }
+
+    size_t n_reuse = common_prefix_len(wrapper->draft_tokens, prefix);
+    if (n_reuse == prefix.size()) n_reuse--;
+    if (!llama_memory_seq_rm(mem, 0, (llama_pos) n_reuse, -1)) {
+        llama_memory_seq_rm(mem, -1, -1, -1);
+        n_reuse = 0;
+    }
+    wrapper->draft_tokens.resize(n_reuse);
+
+    for (size_t i = n_reuse; i < prefix.size(); i += wrapper->n_batch) {
+        size_t n_eval = std::min(prefix.size() - i, (size_t) wrapper->n_batch);
+        batch.n_tokens = 0;
+        for (size_t j = 0; j < n_eval; j++) {
+            common_batch_add(batch, prefix[i + j], (llama_pos) (i + j), { 0 }, (i + j) == prefix.size() - 1);
+        }
+        if (llama_decode(dctx, batch)) {
+            llama_memory_seq_rm(mem, -1, -1, -1);
+            wrapper->draft_tokens.clear();
+            return result;
+        }
+        wrapper->draft_tokens.insert(wrapper->draft_tokens.end(), prefix.begin() + i, prefix.begin() + i + n_eval);
+    }
+
+    for (int k = 0; k < n_draft; k++) {
+        const float * logits = llama_get_logits_ith(dctx, -1);
+        llama_token best = (llama_token) (std::max_element(logits, logits + n_vocab) - logits);
+        if (llama_vocab_is_eog(dvocab, best)) break;
+        result.push_back(best);
+        if (k + 1 == n_draft) break;
+
+        batch.n_tokens = 0;
+        common_batch_add(batch, best, (llama_pos) wrapper->draft_tokens.size(), { 0 }, true);
+        if (llama_decode(dctx, batch)) break;
+        wrapper->draft_tokens.push_back(best);
+    }
+    return result;
+}
+
+// Prompt lookup: take the last n tokens generated so far (history + last), find their most
+// recent occurrence in `source` and propose what followed. Longer n-grams are tried first.
+static const int LOOKUP_NGRAM_MAX = 4;
+static const int LOOKUP_NGRAM_MIN = 2;
+static const int LOOKUP_N_DRAFT = 10;
+
+static std::vector<llama_token> lookup_propose(const std::vector<llama_token> & source,
+                                               const std::vector<llama_token> & history, llama_token last, int n_draft) {
+    for (int n = LOOKUP_NGRAM_MAX; n >= LOOKUP_NGRAM_MIN; n--) {
+        if ((int) history.size() + 1 < n) continue;
+        std::vector<llama_token> key(history.end() - (n - 1), history.end());
+        key.push_back(last);
+
+        for (int i = (int) source.size() - n - 1; i >= 0; i--) {
+            if (std::equal(key.begin(), key.end(), source.begin() + i)) {
+                size_t start = i + n;
+                size_t count = std::min((size_t) n_draft, source.size() - start);
+                return std::vector<llama_token>(source.begin() + start, source.begin() + start + count);
+            }
+        }
+    }
+    return {};
+}
+
+// Cores this process may run on, split by cluster: the fastest cores (within 20% of the top
+// max frequency) decode, the rest only help with compute-bound prefill. Without cpufreq
+// (emulators, some x86 VMs) every core counts as a performance core.
+struct cpu_topology {
+    std::vector<int> perf_cpus;
+    std::vector<int> all_cpus;
+};
+
+static long read_sysfs_long(const char * path) {
+    FILE * f = fopen(path, "r");
+    if (!f) return -1;
+    long value = -1;
+    if (fscanf(f, "%ld", &value) != 1) value = -1;
+    fclose(f);
+    return value;
+}
+
+static cpu_topology read_cpu_topology() {
+    cpu_topology topo;
+    cpu_set_t allowed;
+    CPU_ZERO(&allowed);
+    bool have_mask = sched_getaffinity(0, sizeof(allowed), &allowed) == 0;
+
+    std::vector<std::pair<int, long>> cpus;
+    long max_freq = -1;
+    for (int i = 0; i < CPU_SETSIZE; i++) {
+        char path[128];
+        snprintf(path, sizeof(path), "/sys/devices/system/cpu/cpu%d", i);
+        if (access(path, F_OK) != 0) break;
+        if (have_mask && !CPU_ISSET(i, &allowed)) continue;
+        snprintf(path, sizeof(path), "/sys/devices/system/cpu/cpu%d/cpufreq/cpuinfo_max_freq", i);
+        long freq = read_sysfs_long(path);
+        cpus.emplace_back(i, freq);
+        max_freq = std::max(max_freq, freq);
+    }
+    for (const auto & cpu : cpus) {
+        topo.all_cpus.push_back(cpu.first);
+        if (max_freq <= 0 || cpu.second * 5 >= max_freq * 4) topo.perf_cpus.push_back(cpu.first);
+    }
+    if (topo.all_cpus.empty()) {
+        int n = std::max(1u, std::thread::hardware_concurrency());
+        for (int i = 0; i < n; i++) topo.all_cpus.push_back(i);
+        topo.perf_cpus = topo.all_cpus;
+    }
+    return topo;
+}
+
+// Restricts the calling thread, and the compute threads it starts from now on, to `cpus`
+static bool pin_thread(const std::vector<int> & cpus) {
+    if (cpus.empty()) return false;
+    cpu_set_t set;
+    CPU_ZERO(&set);
+    for (int cpu : cpus) CPU_SET(cpu, &set);
+    if (sched_setaffinity(0, sizeof(set), &set) != 0) {
+        LOGE("pin_thread: sched_setaffinity failed");
+        return false;
+    }
+    return true;
+}
+
+// Milliseconds per call of `fn`, best of `n_runs` after one warm-up call; -1 if decoding failed
+template <typename F>
+static double time_best(int n_runs, F fn) {
+    if (!fn()) return -1;
+    double best = -1;
+    for (int i = 0; i < n_runs; i++) {
+        auto start = std::chrono::steady_clock::now();
+        if (!fn()) return -1;
+        double ms = std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count();
+        if (best < 0 || ms < best) best = ms;
+    }
+    return best;
+}
+
+static const int CALIBRATION_PREFILL = 64;
+
+// Times a prompt chunk and single-token steps in a scratch sequence for a few thread counts
+// and keeps the fastest of each. Decode is memory bound and rarely gains from slow cores,
+// so it is only tried on the performance cluster; prefill is also tried on every core.
+static void calibrate_threads(llama_context_wrapper * wrapper, const cpu_topology & topo, int & n_decode, int & n_prefill) {
+    llama_context * ctx = wrapper->ctx;
+    llama_memory_t mem = llama_get_memory(ctx);
+    llama_batch & batch = wrapper->batch;
+    const llama_seq_id seq = SEQ_SIDE_FIRST;
+    const llama_token token = llama_vocab_bos(wrapper->vocab) >= 0 ? llama_vocab_bos(wrapper->vocab) : 0;
+    const int n_prompt = std::min(CALIBRATION_PREFILL, wrapper->n_batch);
+    const int n_perf = (int) topo.perf_cpus.size();
+    const int n_all = (int) topo.all_cpus.size();
+
+    auto prefill = [&]() {
+        llama_memory_seq_rm(mem, seq, -1, -1);
+        batch.n_tokens = 0;
+        for (int i = 0; i < n_prompt; i++) common_batch_add(batch, token, i, { seq }, i == n_prompt - 1);
+        return llama_decode(ctx, batch) == 0;
+    };
+    auto step = [&]() {
+        llama_memory_seq_rm(mem, seq, n_prompt, -1);
+        batch.n_tokens = 0;
+        common_batch_add(batch, token, n_prompt, { seq }, true);
+        return llama_decode(ctx, batch) == 0;
+    };
+
+    std::vector<int> decode_counts = { std::max(1, n_perf / 2), std::max(1, n_perf - 1), n_perf };
+    std::vector<int> prefill_counts = { n_perf, n_all };
+    for (auto * counts : { &decode_counts, &prefill_counts }) {
+        std::sort(counts->begin(), counts->end());
+        counts->erase(std::unique(counts->begin(), counts->end()), counts->end());
+    }
+
+    double best_prefill = -1;
+    for (int n : prefill_counts) {
+        llama_set_n_threads(ctx, n_decode, n);
+        double ms = time_best(1, prefill);
+        LOGD("calibrate_threads: prefill with %d threads %.1f ms", n, ms);
+        if (ms > 0 && (best_prefill < 0 || ms < best_prefill)) {
+            best_prefill = ms;
+            n_prefill = n;
+        }
+    }
+
+    // The KV of the last prefill stays in place; each step decodes one token after it
+    double best_step = -1;
+    for (int n : decode_counts) {
+        llama_set_n_threads(ctx, n, n_prefill);
+        double ms = time_best(3, step);
+        LOGD("calibrate_threads: decode with %d threads %.1f ms/token", n, ms);
+        if (ms > 0 && (best_step < 0 || ms < best_step)) {
+            best_step = ms;
+            n_decode = n;
+        }
+    }
+
+    llama_memory_seq_rm(mem, seq, -1, -1);
+    llama_set_n_threads(ctx, n_decode, n_prefill);
+}
+
+// Compute threads of a pool are bound to the tuned cores; `poll` (0-100) is how long they
+// spin waiting for the next graph before sleeping. Pools start paused.
+static ggml_threadpool * make_threadpool(const llama_context_wrapper * wrapper, int n_threads,
+                                         ggml_sched_priority prio, int poll, bool strict_cpu) {
+    ggml_threadpool_params params = ggml_threadpool_params_default(n_threads);
+    std::fill(params.cpumask, params.cpumask + GGML_MAX_N_THREADS, false);
+    for (int cpu : wrapper->cpus) {
+        if (cpu < GGML_MAX_N_THREADS) params.cpumask[cpu] = true;
+    }
+    params.prio = prio;
+    params.poll = (uint32_t) std::max(0, std::min(poll, 100));
+    params.strict_cpu = strict_cpu;
+    params.paused = true;
+    return ggml_threadpool_new(&params);
+}
+
+// Parks the pool threads so they stop polling; the next llama_decode resumes them.
+// Called with ctx_mutex held.
+static void pause_threadpools(llama_context_wrapper * wrapper) {
+    if (wrapper->pool) ggml_threadpool_pause(wrapper->pool);
+    if (wrapper->pool_batch) ggml_threadpool_pause(wrapper->pool_batch);
+}
+
+static void free_threadpools(llama_context_wrapper * wrapper) {
+    if (wrapper->pool) ggml_threadpool_free(wrapper->pool);
+    if (wrapper->pool_batch) ggml_threadpool_free(wrapper->pool_batch);
+    wrapper->pool = nullptr;
+    wrapper->pool_batch = nullptr;
+}
+
+// Calls a void callback method. The worker thread has no Java frame to propagate to, so an
+// exception thrown by the callback is logged and cleared to keep the thread usable.
+static void call_cb(JNIEnv * env, jobject cb, jmethodID method, ...) {
+    va_list args;
+    va_start(args, method);
+    env->CallVoidMethodV(cb, method, args);
+    va_end(args);
+    if (env->ExceptionCheck()) {
+        LOGE("call_cb: callback threw");
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+}
+
+static void call_cb_string(JNIEnv * env, jobject cb, jmethodID method, const char * text) {
+    jstring jtext = env->NewStringUTF(text);
+    call_cb(env, cb, method, jtext);
+    env->DeleteLocalRef(jtext);
+}
+
+// Signals Java to read the pending bytes; at most two calls when they wrap around the ring
+static void stream_flush(JNIEnv * env, gen_slot * slot) {
+    if (slot->ring_pending == 0) return;
+    int start = (slot->ring_head - slot->ring_pending + slot->ring_cap) % slot->ring_cap;
+    int first = std::min(slot->ring_pending, slot->ring_cap - start);
+    call_cb(env, slot->cb, g_cb.on_bytes, (jint) slot->candidate, (jint) (slot->ring_offset + start), (jint) first);
+    if (first < slot->ring_pending) {
+        call_cb(env, slot->cb, g_cb.on_bytes, (jint) slot->candidate, (jint) slot->ring_offset, (jint) (slot->ring_pending - first));
+    }
+    slot->ring_pending = 0;
+    slot->last_flush = std::chrono::steady_clock::now();
+}
+
+// Appends a token's raw piece to the ring; a piece may end mid UTF-8 character, Java reassembles it
+static void stream_token(JNIEnv * env, const llama_vocab * vocab, gen_slot * slot, llama_token id) {
+    char buf[256];
+    int n = llama_token_to_piece(vocab, id, buf, sizeof(buf), 0, true);
+    if (n <= 0) return;
+    if (slot->ring_pending + n > slot->ring_cap) stream_flush(env, slot);
+
+    int first = std::min(n, slot->ring_cap - slot->ring_head);
+    memcpy(slot->ring + slot->ring_head, buf, first);
+    memcpy(slot->ring, buf + first, n - first);
+    slot->ring_head = (slot->ring_head + n) % slot->ring_cap;
+    slot->ring_pending += n;
+}
+
+// KV a side request may still need: its prompt past the shared system prefix plus what it may generate
+static int side_reserve(const llama_context_wrapper * wrapper, const std::vector<gen_slot *> & active, const gen_slot * skip) {
+    int total = 0;
+    for (const gen_slot * s : active) {
+        if (s == skip || s->seq == SEQ_CHAT || s->finished || (s->fork_of && !s->admitted)) continue;
+        // Forks share their leader's prompt cells; only their own answer needs room
+        int n_prompt = s->fork_of ? 0 : (int) (s->prompt.size() - std::min(s->prompt.size(), wrapper->system_tokens.size()));
+        total += n_prompt + s->n_remain;
+    }
+    return total;
+}
+
+// Matches the chat prompt against the session cache (evicted span, longest common prefix)
+// and trims it to fit n_ctx_avail. Only the uncached tail is left for prefill.
+static bool admit_chat(llama_context_wrapper * wrapper, gen_slot * slot, int n_ctx_avail) {
+    auto & tokens = slot->prompt;
+
+    // If earlier turns were shifted out, drop the same span from the prompt so it lines
+    // up with the cache; a prompt that no longer contains that span starts over.
+    if (!wrapper->evicted_tokens.empty()) {
+        const size_t keep = wrapper->n_shift_keep;
+        const auto & evicted = wrapper->evicted_tokens;
+        bool still_there = tokens.size() > keep + evicted.size()
+                && wrapper->session_tokens.size() >= keep
+                && std::equal(wrapper->session_tokens.begin(), wrapper->session_tokens.begin() + keep, tokens.begin())
+                && std::equal(evicted.begin(), evicted.end(), tokens.begin() + keep);
+        if (still_there) {
+            tokens.erase(tokens.begin() + keep, tokens.begin() + keep + evicted.size());
+        } else {
+            reset_session(wrapper);
+        }
+    }
+
+    // Reuse the KV of the longest prefix we already decoded (previous turns).
+    // At least one token must be decoded so we get fresh logits to sample from.
+    size_t n_reuse = common_prefix_len(wrapper->session_tokens, tokens);
+    if (n_reuse == tokens.size()) n_reuse--;
+    if (!llama_memory_seq_rm(llama_get_memory(wrapper->ctx), SEQ_CHAT, (llama_pos) n_reuse, -1)) {
+        // Some memory types cannot drop a partial range; start over
+        reset_session(wrapper);
+        n_reuse = 0;
+    }
+    wrapper->session_tokens.resize(n_reuse);
+
+    // Leave room to answer: evict the oldest tokens after the system prefix, cached ones
+    // by shifting the KV, then uncached ones by simply not decoding them
+    const int n_reserve = std::min(slot->n_remain, n_ctx_avail / 4);
+    int overflow = (int) tokens.size() + n_reserve - n_ctx_avail;
+    if (overflow > 0) {
+        int keep = shift_keep_for(wrapper, tokens);
+        if ((int) tokens.size() - keep - overflow < 1) {
+            slot->error = "Prompt exceeds the context window";
+            return false;
+        }
+        int cached = std::max(0, (int) n_reuse - keep);
+        int from_cache = std::min(overflow, cached);
+        if (from_cache > 0) {
+            if (!shift_context(wrapper, keep, from_cache)) {
+                slot->error = "Prompt exceeds the context window";
+                return false;
+            }
+            n_reuse -= from_cache;
+        }
+        int from_prompt = overflow - from_cache;
+        if (from_prompt > 0) {
+            wrapper->evicted_tokens.insert(wrapper->evicted_tokens.end(),
+                    tokens.begin() + keep + from_cache, tokens.begin() + keep + from_cache + from_prompt);
+            wrapper->n_shift_keep = keep;
+        }
+        tokens.erase(tokens.begin() + keep, tokens.begin() + keep + overflow);
+        slot->n_shifted += overflow;
+    }
+
+    slot->n_reserved = n_reserve;
+    slot->n_prompt_done = n_reuse;
+    return true;
+}
+
+// Starts a side sequence from the system prompt snapshot when the prompt begins with it
+// and caps its answer to the KV left over by the chat and the other side requests.
+static bool admit_side(llama_context_wrapper * wrapper, gen_slot * slot, int n_ctx_avail) {
+    llama_memory_t mem = llama_get_memory(wrapper->ctx);
+    const auto & sys = wrapper->system_tokens;
+
+    llama_memory_seq_rm(mem, slot->seq, -1, -1);
+    slot->side_tokens.clear();
+    if (!sys.empty() && slot->prompt.size() > sys.size() && std::equal(sys.begin(), sys.end(), slot->prompt.begin())) {
+        llama_memory_seq_cp(mem, SEQ_SYSTEM, slot->seq, -1, -1);
+        slot->side_tokens = sys;
+    }
+
+    int n_room = n_ctx_avail - (int) (slot->prompt.size() - slot->side_tokens.size());
+    if (n_room < 32) {
+        llama_memory_seq_rm(mem, slot->seq, -1, -1);
+        slot->error = "Not enough free context for a concurrent request";
+        return false;
+    }
+    slot->n_remain = std::min(slot->n_remain, n_room);
+    slot->n_prompt_done = slot->side_tokens.size();
+    return true;
+}
+
+static void push_status(const llama_context_wrapper * wrapper, gen_slot * slot) {
+    auto now = std::chrono::high_resolution_clock::now();
+    double duration = std::chrono::duration_cast<std::chrono::milliseconds>(now - slot->start_time).count() / 1000.0;
+    double tps = duration > 0 ? slot->n_generated / duration : 0;
+    int n_past = (int) slot->cache->size();
+
+    char status[128];
+    int64_t drafted = wrapper->n_drafted;
+    if (slot->seq == SEQ_CHAT && wrapper->draft_ctx && drafted > 0) {
+        snprintf(status, sizeof(status), "Context: %d | Speed: %.1f t/s | Draft: %d%%",
+                 n_past, tps, (int) (100 * wrapper->n_accepted / drafted));
+    } else if (slot->n_lookup_drafted > 0) {
+        snprintf(status, sizeof(status), "Context: %d | Speed: %.1f t/s | Lookup: %d%%",
+                 n_past, tps, (int) (100 * slot->n_lookup_accepted / slot->n_lookup_drafted));
+    } else {
+        snprintf(status, sizeof(status), "Context: %d | Speed: %.1f t/s", n_past, tps);
+    }
+    slot->statuses.emplace_back(status);
+}
+
+static double ms_since(std::chrono::steady_clock::time_point start) {
+    return std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count();
+}
+
+// Samples from logits row `idx` and accepts the token
+static llama_token sample_accept(const llama_context_wrapper * wrapper, gen_slot * slot, int idx) {
+    auto start = std::chrono::steady_clock::now();
+    llama_token id = common_sampler_sample(slot->sampler, wrapper->ctx, idx);
+    common_sampler_accept(slot->sampler, id, true);
+    slot->sample_ms += ms_since(start);
+    return id;
+}
+
+// Shorten policy: in the last eighth of the token or time budget, `id` ending a sentence ends the answer
+static bool wraps_up(const llama_context_wrapper * wrapper, gen_slot * slot, llama_token id) {
+    if (!slot->shorten) return false;
+    bool late = slot->n_remain <= std::max(8, slot->n_budget / 8)
+            || (slot->deadline_ms > 0 && ms_since(slot->t_submit) > slot->deadline_ms * 7 / 8);
+    if (!late) return false;
+
+    char buf[256];
+    int n = llama_token_to_piece(wrapper->vocab, id, buf, sizeof(buf), 0, false);
+    while (n > 0 && buf[n - 1] == ' ') n--;
+    if (n <= 0 || !strchr(".!?\n", buf[n - 1])) return false;
+    slot->reason = STOP_SHORTENED;
+    return true;
+}
+
+static bool past_deadline(const gen_slot * slot) {
+    if (slot->deadline_ms <= 0 && slot->first_token_deadline_ms <= 0) return false;
+    double elapsed = ms_since(slot->t_submit);
+    return (slot->deadline_ms > 0 && elapsed > slot->deadline_ms)
+            || (slot->first_token_deadline_ms > 0 && slot->n_generated == 0 && elapsed > slot->first_token_deadline_ms);
+}
+
+// Ends a request whose deadline passed: an answer cut short completes, no answer at all is an error
+static void expire(gen_slot * slot) {
+    slot->has_id = false;
+    slot->finished = true;
+    slot->reason = STOP_DEADLINE;
+    if (slot->n_generated == 0) slot->error = "No answer within the deadline";
+}
+
+// Records a freshly sampled token; it gets decoded in the next step unless generation ends here
+static void slot_sampled(const llama_context_wrapper * wrapper, gen_slot * slot, llama_token id) {
+    slot->has_id = false;
+    if (llama_vocab_is_eog(wrapper->vocab, id)) {
+        slot->finished = true;
+        return;
+    }
+    if (slot->n_remain <= 0) {
+        slot->reason = STOP_TOKEN_BUDGET;
+        slot->finished = true;
+        return;
+    }
+    slot->out.push_back(id);
+    slot->n_remain--;
+    if (slot->n_generated++ == 0) slot->ttft_ms = ms_since(slot->t_submit);
+    slot->id = id;
+    if (slot->n_remain <= 0) slot->reason = STOP_TOKEN_BUDGET;
+    slot->has_id = slot->n_remain > 0 && !wraps_up(wrapper, slot, id);
+    if (!slot->has_id) slot->finished = true;
+}
+
+// Gives the slot its sequence's sampler, rebuilt only when the request samples differently
+static void prepare_sampler(llama_context_wrapper * wrapper, gen_slot * slot) {
+    common_params_sampling & cur = wrapper->sampler_params[slot->seq];
+    const common_params_sampling & want = slot->sparams;
+    bool same = cur.seed == want.seed && cur.temp == want.temp && cur.top_k == want.top_k
+            && cur.top_p == want.top_p && cur.min_p == want.min_p && cur.penalty_repeat == want.penalty_repeat;
+    if (same) {
+        common_sampler_reset(wrapper->samplers[slot->seq]);
+    } else {
+        common_sampler_free(wrapper->samplers[slot->seq]);
+        wrapper->samplers[slot->seq] = common_sampler_init(wrapper->model, want);
+        cur = want;
+    }
+    slot->sampler = wrapper->samplers[slot->seq];
+}
+
+// The leader's prompt is decoded: share its KV with every follower (seq_cp only tags the
+// cells) and let each sample its own first token from the same logits. The KV left over
+// is split evenly so all candidates can finish.
+static void fork_candidates(llama_context_wrapper * wrapper, const std::vector<gen_slot *> & active, gen_slot * leader, int i_logits) {
+    llama_memory_t mem = llama_get_memory(wrapper->ctx);
+    int n_room = wrapper->n_ctx - (int) leader->cache->size() - side_reserve(wrapper, active, leader);
+    int n_share = std::max(1, n_room / (int) (leader->forks.size() + 1));
+    leader->n_remain = std::min(leader->n_remain, n_share);
+
+    for (gen_slot * f : leader->forks) {
+        if (f->finished) continue;
+        llama_memory_seq_rm(mem, f->seq, -1, -1);
+        llama_memory_seq_cp(mem, leader->seq, f->seq, -1, -1);
+        f->side_tokens = *leader->cache;
+        // Already in the KV, but prompt lookup drafts from it for every candidate
+        f->prompt = leader->prompt;
+        f->n_prompt_done = f->prompt.size();
+        f->admitted = true;
+        f->n_remain = std::min(f->n_remain, n_share);
+        f->start_time = leader->start_time;
+
+        prepare_sampler(wrapper, f);
+        slot_sampled(wrapper, f, sample_accept(wrapper, f, i_logits));
+    }
+}
+
+// One scheduler step: admit new requests, then build a single batch holding the pending
+// token (and draft) of every generating sequence plus prompt chunks of the others, decode
+// it once and sample each sequence from its own rows of the logits.
+static void schedule_step(llama_context_wrapper * wrapper, const std::vector<gen_slot *> & active) {
+    llama_memory_t mem = llama_get_memory(wrapper->ctx);
+    llama_batch & batch = wrapper->batch;
+    batch.n_tokens = 0;
+
+    bool chat_busy = false;
+    for (gen_slot * s : active) {
+        if (s->finished) continue;
+        if (s->stop) {
+            s->finished = true;
+            continue;
+        }
+        if (past_deadline(s)) {
+            expire(s);
+            continue;
+        }
+        if (s->admitted) {
+            if (s->seq == SEQ_CHAT) chat_busy = true;
+            continue;
+        }
+        // Followers are admitted by the leader once its prompt is in the KV
+        if (s->fork_of) continue;
+        // A chat request sent while the previous one is still winding down waits for it
+        if (s->seq == SEQ_CHAT && chat_busy) continue;
+        s->admitted = true;
+        if (s->seq == SEQ_CHAT) chat_busy = true;
+
+        s->prompt = common_tokenize(wrapper->vocab, s->text, true, true);
+        s->text.clear();
+        prepare_sampler(wrapper, s);
+
+        bool ok;
+        if (s->prompt.empty()) {
+            s->error = "Prompt produced no tokens";
+            ok = false;
+        } else if (s->seq == SEQ_CHAT) {
+            ok = admit_chat(wrapper, s, wrapper->n_ctx - side_reserve(wrapper, active, s));
+        } else {
+            // A running chat keeps the answer room it was admitted with; an idle one only holds its cached session
+            int n_chat = (int) wrapper->session_tokens.size();
+            for (const gen_slot * c : active) {
+                if (c->seq == SEQ_CHAT && c->admitted && !c->finished) n_chat = (int) c->prompt.size() + c->n_reserved;
+            }
+            ok = admit_side(wrapper, s, wrapper->n_ctx - n_chat - side_reserve(wrapper, active, s));
+        }
+        if (!ok) {
+            s->finished = true;
+            continue;
+        }
+
+        char status[128];
+        snprintf(status, sizeof(status), "Processing prompt (%zu new, %zu cached)...",
+                 s->prompt.size() - s->n_prompt_done, s->n_prompt_done);
+        s->statuses.emplace_back(status);
+    }
+
+    // Generating sequences go first with one token each, plus the chat's speculative draft
+    for (gen_slot * s : active) {
+        s->i_batch = -1;
+        s->n_batch = 0;
+        s->draft.clear();
+        if (s->finished || !s->has_id) continue;
+
+        // Candidates share one status line, the leader's
+        auto now = std::chrono::steady_clock::now();
+        if (s->candidate == 0 && now >= s->next_status) {
+            s->next_status = now + std::chrono::milliseconds(STATUS_INTERVAL_MS);
+            push_status(wrapper, s);
+        }
+
+        int n_past = (int) s->cache->size();
+        int limit = wrapper->n_ctx;
+        if (s->seq == SEQ_CHAT) {
+            limit -= side_reserve(wrapper, active, s);
+
+            // Out of room: drop the oldest middle of the conversation and keep the recent tokens
+            if (n_past + 2 > limit) {
+                int keep = shift_keep_for(wrapper, wrapper->session_tokens);
+                int recent = std::min(wrapper->n_keep_recent, limit - keep - 64);
+                int n_discard = n_past - keep - recent;
+                if (n_discard <= 0) n_discard = (n_past - keep) / 2;
+                if (!shift_context(wrapper, keep, n_discard)) {
+                    s->finished = true;
+                    continue;
+                }
+                n_past = (int) wrapper->session_tokens.size();
+                s->n_shifted += n_discard;
+            }
+        }
+
+        // Guess what follows `id` (draft model or prompt lookup); the target checks all guesses in one decode
+        int max_room = std::min({ s->n_remain, limit - n_past - 2, wrapper->n_batch - batch.n_tokens - 1 });
+        if (s->seq == SEQ_CHAT && wrapper->draft_ctx) {
+            int max_draft = std::min(wrapper->n_draft, max_room);
+            if (max_draft > 0) {
+                std::vector<llama_token> prefix(wrapper->session_tokens);
+                prefix.push_back(s->id);
+                s->draft = draft_propose(wrapper, prefix, max_draft);
+            }
+        } else if (s->prompt_lookup) {
+            int max_draft = std::min(LOOKUP_N_DRAFT, max_room);
+            if (max_draft > 0) {
+                s->draft = lookup_propose(s->prompt, *s->cache, s->id, max_draft);
+            }
+        }
+
+        if (n_past + 1 + (int) s->draft.size() > limit) {
+            s->finished = true;
+            continue;
+        }
+        if (batch.n_tokens + 1 + (int) s->draft.size() > wrapper->n_batch) continue;
+
+        s->i_batch = batch.n_tokens;
+        s->n_batch = 1 + (int) s->draft.size();
+        common_batch_add(batch, s->id, n_past, { s->seq }, true);
+        for (size_t i = 0; i < s->draft.size(); i++) {
+            common_batch_add(batch, s->draft[i], n_past + 1 + (int) i, { s->seq }, true);
+        }
+    }
+
+    // Prompts fill whatever room is left, so a long prefill never stalls running answers
+    for (gen_slot * s : active) {
+        if (s->finished || !s->admitted || s->has_id || s->i_batch >= 0) continue;
+        int room = wrapper->n_batch - batch.n_tokens;
+        size_t left = s->prompt.size() - s->n_prompt_done;
+        if (left == 0 || room <= 0) continue;
+
+        size_t n_eval = std::min(left, (size_t) room);
+        llama_pos pos = (llama_pos) s->cache->size();
+        s->i_batch = batch.n_tokens;
+        s->n_batch = (int) n_eval;
+        for (size_t j = 0; j < n_eval; j++) {
+            size_t k = s->n_prompt_done + j;
+            common_batch_add(batch, s->prompt[k], pos + (llama_pos) j, { s->seq }, k == s->prompt.size() - 1);
+        }
+    }
+
+    if (batch.n_tokens == 0) return;
+
+    wrapper->batch_slots.clear();
+    for (gen_slot * s : active) {
+        if (s->i_batch >= 0) wrapper->batch_slots.push_back(s);
+    }
+    llama_perf_context_data perf_before = llama_perf_context(wrapper->ctx);
+    int ret = llama_decode(wrapper->ctx, batch);
+    llama_perf_context_data perf_after = llama_perf_context(wrapper->ctx);
+    double batch_ms = (perf_after.t_p_eval_ms + perf_after.t_eval_ms) - (perf_before.t_p_eval_ms + perf_before.t_eval_ms);
+    for (gen_slot * s : wrapper->batch_slots) {
+        if (s->has_id) {
+            s->decode_ms += batch_ms;
+        } else {
+            s->prompt_ms += batch_ms;
+            // An aborted chunk is decoded again and counted then
+            if (ret != 2) s->n_prompt_eval += s->n_batch;
+        }
+    }
+    wrapper->batch_slots.clear();
+
+    if (ret == 2) {
+        // Aborted because a request in the batch was stopped or out of time. Whatever the batch
+        // put in the KV is dropped, so each sequence again matches its token list; a prompt keeps
+        // the chunks decoded in earlier steps and the next turn reuses them. The other requests
+        // are untouched: their pending token or prompt chunk goes into the next step's batch.
+        LOGD("schedule_step: decode of %d tokens aborted", batch.n_tokens);
+        for (gen_slot * s : active) {
+            if (s->i_batch < 0) continue;
+            llama_memory_seq_rm(mem, s->seq, (llama_pos) s->cache->size(), -1);
+            if (s->stop) {
+                s->has_id = false;
+                s->finished = true;
+            } else if (past_deadline(s)) {
+                expire(s);
+            }
+        }
+        return;
+    }
+    if (ret) {
+        LOGE("schedule_step: failed to decode %d tokens", batch.n_tokens);
+        for (gen_slot * s : active) {
+            if (s->i_batch < 0) continue;
+            if (!s->has_id) s->error = "Failed to decode prompt";
+            if (s->seq == SEQ_CHAT) reset_session(wrapper);
+            s->finished = true;
+        }
+        return;
+    }
+
+    for (gen_slot * s : active) {
+        if (s->i_batch < 0 || s->finished) continue;
+
+        if (!s->has_id) {
+            auto first = s->prompt.begin() + s->n_prompt_done;
+            s->cache->insert(s->cache->end(), first, first + s->n_batch);
+            s->n_prompt_done += s->n_batch;
+            if (s->n_prompt_done == s->prompt.size()) {
+                s->start_time = std::chrono::high_resolution_clock::now();
+                if (!s->forks.empty()) fork_candidates(wrapper, active, s, s->i_batch + s->n_batch - 1);
+                slot_sampled(wrapper, s, sample_accept(wrapper, s, s->i_batch + s->n_batch - 1));
+            }
+            continue;
+        }
+
+        s->cache->push_back(s->id);
+        if (s->draft.empty()) {
+            slot_sampled(wrapper, s, sample_accept(wrapper, s, s->i_batch));
+            continue;
+        }
+
+        // Samples at every drafted position and stops at the first disagreement;
+        // the last returned token is the target's own pick and is not in the KV yet
+        std::vector<int> idxs(s->draft.size() + 1);
+        std::iota(idxs.begin(), idxs.end(), s->i_batch);
+        auto t_sample = std::chrono::steady_clock::now();
+        std::vector<llama_token> ids = common_sampler_sample_and_accept_n(s->sampler, wrapper->ctx, idxs, s->draft);
+        s->sample_ms += ms_since(t_sample);
+        size_t n_acc = ids.size() - 1;
+        if (s->seq == SEQ_CHAT && wrapper->draft_ctx) {
+            wrapper->n_drafted += s->draft.size();
+            wrapper->n_accepted += n_acc;
+        } else {
+            s->n_lookup_drafted += s->draft.size();
+            s->n_lookup_accepted += n_acc;
+        }
+        llama_memory_seq_rm(mem, s->seq, (llama_pos) (s->cache->size() + n_acc), -1);
+
+        bool stopped = false;
+        for (size_t i = 0; i < n_acc; i++) {
+            if (s->n_remain <= 0) {
+                s->reason = STOP_TOKEN_BUDGET;
+                stopped = true;
+                break;
+            }
+            s->cache->push_back(ids[i]);
+            if (llama_vocab_is_eog(wrapper->vocab, ids[i])) {
+                stopped = true;
+                break;
+            }
+            s->out.push_back(ids[i]);
+            s->n_remain--;
+            s->n_generated++;
+            if (wraps_up(wrapper, s, ids[i])) {
+                stopped = true;
+                break;
+            }
+        }
+        if (stopped) {
+            // Drop accepted tokens past the stopping point so the cache matches the token list
+            llama_memory_seq_rm(mem, s->seq, (llama_pos) s->cache->size(), -1);
+            s->has_id = false;
+            s->finished = true;
+            continue;
+        }
+        slot_sampled(wrapper, s, ids.back());
+    }
+}
+
+// Abort callback of the context, polled by ggml between graph nodes on the decoding thread.
+// Interrupts a decode as soon as any of its requests is stopped or past its deadline, so a stop
+// never waits for a long prompt chunk, even one shared with other requests; schedule_step
+// retires those and batches the others' tokens again.
+static bool abort_if_stopped(void * data) {
+    auto * wrapper = static_cast<llama_context_wrapper *>(data);
+    for (const gen_slot * s : wrapper->batch_slots) {
+        if (s->stop || past_deadline(s)) return true;
+    }
+    return false;
+}
+
+// Hands what a step produced to Java, without holding the context lock, and retires finished slots
+static void deliver(JNIEnv * env, llama_context_wrapper * wrapper, gen_slot * slot) {
+    for (const auto & status : slot->statuses) {
+        call_cb_string(env, slot->cb, g_cb.on_status, status.c_str());
+    }
+    slot->statuses.clear();
+
+    if (slot->n_shifted > 0) {
+        call_cb(env, slot->cb, g_cb.on_context_shift, (jint) slot->n_shifted);
+        slot->n_shifted = 0;
+    }
+
+    for (llama_token id : slot->out) {
+        stream_token(env, wrapper->vocab, slot, id);
+    }
+    slot->out.clear();
+
+    auto since_flush = std::chrono::steady_clock::now() - slot->last_flush;
+    if (slot->finished || slot->ring_pending >= STREAM_FLUSH_BYTES
+            || since_flush >= std::chrono::milliseconds(STREAM_FLUSH_MS)) {
+        stream_flush(env, slot);
+    }
+
+    if (!slot->finished) return;
+
+    // A leader that ends before forking takes its waiting followers with it
+    for (gen_slot * f : slot->forks) {
+        if (!f->admitted) f->finished = true;
+    }
+
+    std::vector<double> metrics(METRIC_COUNT);
+    metrics[METRIC_TTFT_MS] = slot->ttft_ms;
+    metrics[METRIC_PROMPT_TOKENS] = slot->n_prompt_eval;
+    metrics[METRIC_PROMPT_MS] = slot->prompt_ms;
+    metrics[METRIC_DECODE_TOKENS] = slot->n_generated;
+    metrics[METRIC_DECODE_MS] = slot->decode_ms;
+    metrics[METRIC_SAMPLE_MS] = slot->sample_ms;
+    metrics[METRIC_KV_CELLS] = (double) slot->cache->size();
+    struct rusage usage;
+    metrics[METRIC_PEAK_RSS_KB] = getrusage(RUSAGE_SELF, &usage) == 0 ? (double) usage.ru_maxrss : 0;
+    metrics[METRIC_STOP_REASON] = slot->reason;
+
+    bool report = true;
+    std::string error = slot->error;
+    if (slot->group) {
+        if (slot->candidate == 0) slot->group->metrics = metrics;
+        else if (!slot->group->metrics.empty()) metrics = slot->group->metrics;
+        if (error.empty()) error = slot->group->error;
+        slot->group->error = error;
+        report = --slot->group->pending == 0;
+        if (report) delete slot->group;
+    }
+    if (!report) {
+        // Another candidate of this request is still running
+    } else {
+        if (!error.empty()) {
+            call_cb_string(env, slot->cb, g_cb.on_error, error.c_str());
+        } else if (!slot->stop) {
+            jdoubleArray jmetrics = env->NewDoubleArray(METRIC_COUNT);
+            env->SetDoubleArrayRegion(jmetrics, 0, METRIC_COUNT, metrics.data());
+            call_cb(env, slot->cb, g_cb.on_metrics, jmetrics);
+            env->DeleteLocalRef(jmetrics);
+            call_cb(env, slot->cb, g_cb.on_complete);
+        }
+        call_cb(env, slot->cb, g_cb.on_finished);
+    }
+    env->DeleteGlobalRef(slot->cb);
+
+    {
+        std::lock_guard<std::mutex> lock(wrapper->sched_mutex);
+        auto & slots = wrapper->slots;
+        slots.erase(std::remove(slots.begin(), slots.end(), slot), slots.end());
+    }
+    delete slot;
+}
+
+// The model's generation thread: attached to the JVM once, it sleeps until requests are
+// queued and runs scheduler steps until none are left. Exits once closing and drained.
+static void worker_loop(llama_context_wrapper * wrapper) {
+    pin_thread(wrapper->cpus);
+    JNIEnv * env = nullptr;
+    JavaVMAttachArgs args = { JNI_VERSION_1_6, "llama-worker", nullptr };
+    if (g_vm->AttachCurrentThread(&env, &args) != JNI_OK) {
+        LOGE("worker_loop: failed to attach to the JVM");
+        return;
+    }
+
+    std::unique_lock<std::mutex> lock(wrapper->sched_mutex);
+    while (true) {
+        wrapper->sched_cv.wait(lock, [wrapper] { return !wrapper->slots.empty() || wrapper->closing; });
+        if (wrapper->slots.empty()) break;
+        std::vector<gen_slot *> active = wrapper->slots;
+        lock.unlock();
+
+        {
+            std::lock_guard<std::mutex> ctx_lock(wrapper->ctx_mutex);
+            if (!wrapper->ctx) {
+                for (gen_slot * s : active) {
+                    if (s->finished) continue;
+                    s->error = "Model context is unavailable";
+                    s->finished = true;
+                }
+            } else {
+                schedule_step(wrapper, active);
+            }
+            bool idle = true;
+            for (gen_slot * s : active) {
+                if (wrapper->ctx && s->finished && s->seq != SEQ_CHAT) llama_memory_seq_rm(llama_get_memory(wrapper->ctx), s->seq, -1, -1);
+                idle = idle && s->finished;
+            }
+            if (idle) pause_threadpools(wrapper);
+        }
+        for (gen_slot * s : active) deliver(env, wrapper, s);
+
+        lock.lock();
+    }
+    lock.unlock();
+
+    g_vm->DetachCurrentThread();
+}
+
+// Fails a request that never reached the worker, on the calling thread
+static void reject(JNIEnv * env, jobject cb, const char * message) {
+    call_cb_string(env, cb, g_cb.on_error, message);
+    call_cb(env, cb, g_cb.on_finished);
+}
+
+// Splits the request's stream buffer evenly between its slots
+static bool attach_stream(JNIEnv * env, jobject stream, const std::vector<gen_slot *> & slots) {
+    auto * base = static_cast<uint8_t *>(env->GetDirectBufferAddress(stream));
+    jlong capacity = env->GetDirectBufferCapacity(stream);
+    int share = base ? (int) (capacity / (jlong) slots.size()) : 0;
+    if (share < 256) return false;
+    for (size_t i = 0; i < slots.size(); i++) {
+        slots[i]->ring = base + i * share;
+        slots[i]->ring_offset = (int) (i * share);
+        slots[i]->ring_cap = share;
+    }
+    return true;
+}
+
+static void * map_model_file(const char * path, size_t & size) {
+    int fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) return nullptr;
+    struct stat st;
+    void * addr = MAP_FAILED;
+    if (fstat(fd, &st) == 0 && st.st_size > 0) {
+        size = (size_t) st.st_size;
+        addr = mmap(nullptr, size, PROT_READ, MAP_SHARED, fd, 0);
+    }
+    close(fd);
+    return addr == MAP_FAILED ? nullptr : addr;
+}
+
+// Scheduling priority, in the order of LlamaInference.ThreadPriority
+static ggml_sched_priority prio_from_java(jint priority) {
+    switch (priority) {
+        case 0: return GGML_SCHED_PRIO_LOW;
+        case 2: return GGML_SCHED_PRIO_MEDIUM;
+        case 3: return GGML_SCHED_PRIO_HIGH;
+        default: return GGML_SCHED_PRIO_NORMAL;
+    }
+}
+
+// KV cache element type, in the order of LlamaInference.KvCacheType
+static ggml_type kv_type_from_java(jint kv_type) {
+    switch (kv_type) {
+        case 1: return GGML_TYPE_Q8_0;
+        case 2: return GGML_TYPE_Q4_0;
+        default: return GGML_TYPE_F16;
+    }
+}
+
+static jint kv_type_to_java(ggml_type type) {
+    switch (type) {
+        case GGML_TYPE_Q8_0: return 1;
+        case GGML_TYPE_Q4_0: return 2;
+        default: return 0;
+    }
+}
+
+// Parameters of the scheduler's context: all sequences in one unified cache
+static llama_context_params chat_ctx_params(int n_ctx, int n_batch, ggml_type type_kv, int n_threads, int n_threads_batch) {
+    auto cparams = llama_context_default_params();
+    cparams.n_ctx = n_ctx;
+    cparams.n_batch = n_batch;
+    cparams.n_ubatch = n_batch;
+    cparams.n_threads = n_threads;
+    cparams.n_threads_batch = n_threads_batch;
+    cparams.flash_attn_type = LLAMA_FLASH_ATTN_TYPE_ENABLED;
+    cparams.n_seq_max = N_SEQ_MAX;
+    cparams.kv_unified = true;
+    // Decode timings for GenerationMetrics come from llama's perf counters
+    cparams.no_perf = false;
+    // Quantized K/V shrink the cache 2x (q8_0) or 3.5x (q4_0); V needs flash attention for that
+    cparams.type_k = type_kv;
+    cparams.type_v = type_kv;
+    return cparams;
+}
+
+// Draft context matching the target's size, batch, threads and KV type
+static llama_context * make_draft_ctx(const llama_context_wrapper * wrapper, llama_model * model) {
+    auto cparams = llama_context_default_params();
+    cparams.n_ctx = wrapper->n_ctx;
+    cparams.n_batch = wrapper->n_batch;
+    cparams.n_ubatch = wrapper->n_batch;
+    cparams.n_threads = wrapper->n_threads;
+    cparams.n_threads_batch = wrapper->n_threads_batch;
+    cparams.flash_attn_type = LLAMA_FLASH_ATTN_TYPE_ENABLED;
+    cparams.type_k = wrapper->type_k;
+    cparams.type_v = wrapper->type_v;
+    return llama_init_from_model(model, cparams);
+}
+
+// Pooling of token embeddings, in the order of LlamaInference.Pooling
+static enum llama_pooling_type pooling_from_java(jint pooling) {
+    switch (pooling) {
+        case 1: return LLAMA_POOLING_TYPE_CLS;
+        case 2: return LLAMA_POOLING_TYPE_LAST;
+        default: return LLAMA_POOLING_TYPE_MEAN;
+    }
+}
+
+// Target of a re-quantization, in the order of ModelManager.Quantization
+static llama_ftype ftype_from_java(jint type) {
+    switch (type) {
+        case 1: return LLAMA_FTYPE_MOSTLY_Q4_0;
+        case 2: return LLAMA_FTYPE_MOSTLY_Q3_K_M;
+        case 3: return LLAMA_FTYPE_MOSTLY_IQ4_XS;
+        case 4: return LLAMA_FTYPE_MOSTLY_IQ4_NL;
+        default: return LLAMA_FTYPE_MOSTLY_Q4_K_M;
+    }
+}
+
+// Model dimensions ContextPlanner sizes the context from, in the order of ContextPlanner.Shape
+enum shape_index {
+    SHAPE_N_LAYER,
+    SHAPE_N_EMBD,
+    SHAPE_N_HEAD,
+    SHAPE_N_HEAD_KV,
+    SHAPE_HEAD_DIM_K,
+    SHAPE_HEAD_DIM_V,
+    SHAPE_N_FF,
+    SHAPE_N_VOCAB,
+    SHAPE_N_CTX_TRAIN,
+    SHAPE_WEIGHT_BYTES,
+    SHAPE_COUNT,
 };
 
-extern "C" {
+// Integer metadata value; per-layer arrays (head counts, feed-forward sizes) give their largest entry
+static int64_t gguf_int(const gguf_context * gguf, const std::string & key) {
+    int64_t id = gguf_find_key(gguf, key.c_str());
+    if (id < 0) return 0;
+    switch (gguf_get_kv_type(gguf, id)) {
+        case GGUF_TYPE_UINT32: return gguf_get_val_u32(gguf, id);
+        case GGUF_TYPE_INT32: return gguf_get_val_i32(gguf, id);
+        case GGUF_TYPE_UINT64: return (int64_t) gguf_get_val_u64(gguf, id);
+        case GGUF_TYPE_ARRAY: {
+            const size_t n = gguf_get_arr_n(gguf, id);
+            const void * data = gguf_get_arr_data(gguf, id);
+            int64_t max = 0;
+            switch (gguf_get_arr_type(gguf, id)) {
+                case GGUF_TYPE_UINT32: for (size_t i = 0; i < n; i++) max = std::max(max, (int64_t) ((const uint32_t *) data)[i]); break;
+                case GGUF_TYPE_INT32: for (size_t i = 0; i < n; i++) max = std::max(max, (int64_t) ((const int32_t *) data)[i]); break;
+                default: break;
+            }
+            return max;
+        }
+        default: return 0;
+    }
+}
+
+// Reads the dimensions from the GGUF header without loading any weights
+static bool read_shape(const char * path, int64_t * shape) {
+    gguf_init_params params = { true, nullptr };
+    gguf_context * gguf = gguf_init_from_file(path, params);
+    if (!gguf) return false;
+
+    int64_t arch_id = gguf_find_key(gguf, "general.architecture");
+    std::string arch = arch_id >= 0 ? gguf_get_val_str(gguf, arch_id) : "llama";
+    shape[SHAPE_N_LAYER] = gguf_int(gguf, arch + ".block_count");
+    shape[SHAPE_N_EMBD] = gguf_int(gguf, arch + ".embedding_length");
+    shape[SHAPE_N_HEAD] = gguf_int(gguf, arch + ".attention.head_count");
+    shape[SHAPE_N_HEAD_KV] = gguf_int(gguf, arch + ".attention.head_count_kv");
+    if (shape[SHAPE_N_HEAD_KV] == 0) shape[SHAPE_N_HEAD_KV] = shape[SHAPE_N_HEAD];
+    const int64_t head_dim = shape[SHAPE_N_HEAD] > 0 ? shape[SHAPE_N_EMBD] / shape[SHAPE_N_HEAD] : 0;
+    shape[SHAPE_HEAD_DIM_K] = gguf_int(gguf, arch + ".attention.key_length");
+    shape[SHAPE_HEAD_DIM_V] = gguf_int(gguf, arch + ".attention.value_length");
+    if (shape[SHAPE_HEAD_DIM_K] == 0) shape[SHAPE_HEAD_DIM_K] = head_dim;
+    if (shape[SHAPE_HEAD_DIM_V] == 0) shape[SHAPE_HEAD_DIM_V] = head_dim;
+    shape[SHAPE_N_FF] = gguf_int(gguf, arch + ".feed_forward_length");
+    shape[SHAPE_N_VOCAB] = gguf_int(gguf, arch + ".vocab_size");
+    if (shape[SHAPE_N_VOCAB] == 0) {
+        int64_t tokens_id = gguf_find_key(gguf, "tokenizer.ggml.tokens");
+        if (tokens_id >= 0) shape[SHAPE_N_VOCAB] = (int64_t) gguf_get_arr_n(gguf, tokens_id);
+    }
+    shape[SHAPE_N_CTX_TRAIN] = gguf_int(gguf, arch + ".context_length");
+    int64_t weight_bytes = 0;
+    for (int64_t i = 0; i < gguf_get_n_tensors(gguf); i++) weight_bytes += (int64_t) gguf_get_tensor_size(gguf, i);
+    shape[SHAPE_WEIGHT_BYTES] = weight_bytes;
+    gguf_free(gguf);
+
+    return shape[SHAPE_N_LAYER] > 0 && shape[SHAPE_N_EMBD] > 0 && shape[SHAPE_N_HEAD] > 0;
+}
+
+// Pooling is fixed per context, so asking for another one rebuilds the embedding context
+static bool ensure_embd_ctx(llama_context_wrapper * wrapper, enum llama_pooling_type pooling) {
+    if (wrapper->embd_ctx && wrapper->embd_pooling == pooling) return true;
+    if (wrapper->embd_ctx) llama_free(wrapper->embd_ctx);
+
+    auto cparams = llama_context_default_params();
+    cparams.n_ctx = EMBD_N_BATCH;
+    cparams.n_batch = EMBD_N_BATCH;
+    // Pooled embeddings need the whole sequence in one ubatch
+    cparams.n_ubatch = EMBD_N_BATCH;
+    cparams.n_seq_max = EMBD_N_SEQ;
+    cparams.kv_unified = true;
+    cparams.embeddings = true;
+    cparams.pooling_type = pooling;
+    cparams.n_threads = wrapper->n_threads_batch;
+    cparams.n_threads_batch = wrapper->n_threads_batch;
+    cparams.flash_attn_type = LLAMA_FLASH_ATTN_TYPE_ENABLED;
+
+    wrapper->embd_ctx = llama_init_from_model(wrapper->model, cparams);
+    wrapper->embd_pooling = pooling;
+    if (!wrapper->embd_ctx) {
+        LOGE("ensure_embd_ctx: failed to create the embedding context");
+        return false;
+    }
+    if (!wrapper->embd_batch.token) wrapper->embd_batch = llama_batch_init(EMBD_N_BATCH, 0, 1);
+    return true;
+}
+
+// Embeds every text into out (n_embd floats each). Texts are packed one sequence each into
+// shared batches; an empty text gets a zero vector.
+static bool embed_texts(llama_context_wrapper * wrapper, const std::vector<std::string> & texts, bool normalize, std::vector<float> & out) {
+    const int n_embd = llama_model_n_embd(wrapper->model);
+    const bool encoder_only = llama_model_has_encoder(wrapper->model) && !llama_model_has_decoder(wrapper->model);
+    llama_context * ctx = wrapper->embd_ctx;
+    llama_batch & batch = wrapper->embd_batch;
+
+    std::vector<std::vector<llama_token>> tokens;
+    for (const std::string & text : texts) {
+        tokens.push_back(common_tokenize(wrapper->vocab, text, true, false));
+        if ((int) tokens.back().size() > EMBD_N_BATCH) tokens.back().resize(EMBD_N_BATCH);
+    }
+    out.assign(texts.size() * n_embd, 0.0f);
+
+    size_t next = 0;
+    while (next < tokens.size()) {
+        batch.n_tokens = 0;
+        std::vector<size_t> members;
+        while (next < tokens.size() && (int) members.size() < EMBD_N_SEQ
+                && batch.n_tokens + (int) tokens[next].size() <= EMBD_N_BATCH) {
+            const auto & t = tokens[next];
+            if (!t.empty()) {
+                llama_seq_id seq = (llama_seq_id) members.size();
+                for (size_t j = 0; j < t.size(); j++) common_batch_add(batch, t[j], (llama_pos) j, { seq }, true);
+                members.push_back(next);
+            }
+            next++;
+        }
+        if (members.empty()) continue;
+
+        llama_memory_clear(llama_get_memory(ctx), true);
+        int ret = encoder_only ? llama_encode(ctx, batch) : llama_decode(ctx, batch);
+        if (ret) {
+            LOGE("embed_texts: failed to decode %d tokens", batch.n_tokens);
+            return false;
+        }
+        for (size_t k = 0; k < members.size(); k++) {
+            const float * embd = llama_get_embeddings_seq(ctx, (llama_seq_id) k);
+            if (!embd) return false;
+            float * dst = out.data() + members[k] * n_embd;
+            if (normalize) {
+                common_embd_normalize(embd, dst, n_embd, 2);
+            } else {
+                std::copy(embd, embd + n_embd, dst);
+            }
+        }
+    }
+    return true;
+}
+
+// Decodes the system prompt into SEQ_SYSTEM and starts the chat from a copy of it.
+// Caller holds ctx_mutex.
+static bool snapshot_system_prompt(llama_context_wrapper * wrapper, std::vector<llama_token> tokens) {
+    llama_memory_t mem = llama_get_memory(wrapper->ctx);
+    llama_memory_seq_rm(mem, SEQ_SYSTEM, -1, -1);
+    wrapper->system_tokens.clear();
+    if (tokens.empty() || (int) tokens.size() >= wrapper->n_ctx / 2) return false;
+
+    llama_batch batch = llama_batch_init(wrapper->n_batch, 0, 1);
+    for (size_t i = 0; i < tokens.size(); i += wrapper->n_batch) {
+        size_t n_eval = std::min(tokens.size() - i, (size_t) wrapper->n_batch);
+        batch.n_tokens = 0;
+        for (size_t j = 0; j < n_eval; j++) {
+            common_batch_add(batch, tokens[i + j], (llama_pos) (i + j), { SEQ_SYSTEM }, false);
+        }
+        if (llama_decode(wrapper->ctx, batch)) {
+            LOGE("snapshot_system_prompt: failed to decode system prompt");
+            llama_memory_seq_rm(mem, SEQ_SYSTEM, -1, -1);
+            llama_batch_free(batch);
+            return false;
+        }
+    }
+    llama_batch_free(batch);
+
+    pause_threadpools(wrapper);
+    wrapper->system_tokens = std::move(tokens);
+    reset_session(wrapper);
+    LOGD("snapshot_system_prompt: snapshot of %zu tokens", wrapper->system_tokens.size());
+    return true;
+}
+
+extern "C" {
+
+JNIEXPORT jint JNICALL
+JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv * env = nullptr;
+    if (vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK) return JNI_ERR;
+
+    jclass cls = env->FindClass("com/example/offlinellm/LlamaInference$NativeCallback");
+    if (!cls) {
+        LOGE("JNI_OnLoad: NativeCallback class not found");
+        return JNI_ERR;
+    }
+    g_vm = vm;
+    g_cb.cls = static_cast<jclass>(env->NewGlobalRef(cls));
+    g_cb.on_bytes = env->GetMethodID(cls, "onBytes", "(III)V");
+    g_cb.on_status = env->GetMethodID(cls, "onStatus", "(Ljava/lang/String;)V");
+    g_cb.on_context_shift = env->GetMethodID(cls, "onContextShift", "(I)V");
+    g_cb.on_complete = env->GetMethodID(cls, "onComplete", "()V");
+    g_cb.on_error = env->GetMethodID(cls, "onError", "(Ljava/lang/String;)V");
+    g_cb.on_finished = env->GetMethodID(cls, "onFinished", "()V");
+    g_cb.on_metrics = env->GetMethodID(cls, "onMetrics", "([D)V");
+    env->DeleteLocalRef(cls);
+    return JNI_VERSION_1_6;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeInit(JNIEnv *env, jobject thiz, jstring model_path, jint kv_type, jint n_ctx, jint n_batch, jint n_threads, jint n_threads_batch) {
+    const char * path = env->GetStringUTFChars(model_path, nullptr);
+    LOGD("nativeInit: Loading model from %s", path);
+
+    llama_backend_init();
+
+    auto mparams = llama_model_default_params();
+    mparams.n_gpu_layers = 0;
+
+    llama_model * model = llama_model_load_from_file(path, mparams);
+    env->ReleaseStringUTFChars(model_path, path);
+
+    if (!model) {
+        LOGE("nativeInit: Failed to load model");
+        return 0;
+    }
+
+    // Thread counts saved from an earlier calibration, or the performance cores until calibrated
+    cpu_topology topo = read_cpu_topology();
+    const bool calibrate = n_threads <= 0 || n_threads_batch <= 0;
+    const int n_perf = (int) topo.perf_cpus.size();
+    // Sized by ContextPlanner for the RAM this device has left
+    auto cparams = chat_ctx_params(n_ctx > 0 ? n_ctx : 4096, n_batch > 0 ? n_batch : 512, kv_type_from_java(kv_type),
+            calibrate ? n_perf : std::min((int) n_threads, (int) topo.all_cpus.size()),
+            calibrate ? n_perf : std::min((int) n_threads_batch, (int) topo.all_cpus.size()));
+
+    llama_context * ctx = llama_init_from_model(model, cparams);
+    if (!ctx && cparams.type_k != GGML_TYPE_F16) {
+        LOGE("nativeInit: Quantized KV cache unavailable, falling back to f16");
+        // Keep the cache in the memory that was planned for it
+        uint32_t shrink = cparams.type_k == GGML_TYPE_Q4_0 ? 4 : 2;
+        cparams.n_ctx = std::max(512u, cparams.n_ctx / shrink);
+        cparams.type_k = GGML_TYPE_F16;
+        cparams.type_v = GGML_TYPE_F16;
+        ctx = llama_init_from_model(model, cparams);
+    }
+    if (!ctx) {
+        LOGE("nativeInit: Failed to create context");
+        llama_model_free(model);
+        return 0;
+    }
+
+    auto * wrapper = new llama_context_wrapper();
+    wrapper->model = model;
+    wrapper->ctx = ctx;
+    wrapper->vocab = llama_model_get_vocab(model);
+    wrapper->n_batch = cparams.n_batch;
+    wrapper->n_ctx = llama_n_ctx(ctx);
+    wrapper->n_keep_recent = wrapper->n_ctx / 2;
+    wrapper->type_k = cparams.type_k;
+    wrapper->type_v = cparams.type_v;
+    // Shared by all sequences: a prompt chunk or one token (plus draft) per running request
+    wrapper->batch = llama_batch_init(wrapper->n_batch, 0, 1);
+    wrapper->n_threads = cparams.n_threads;
+    wrapper->n_threads_batch = cparams.n_threads_batch;
+
+    cpu_set_t caller_mask;
+    bool restore_mask = sched_getaffinity(0, sizeof(caller_mask), &caller_mask) == 0;
+    if (calibrate) {
+        pin_thread(topo.perf_cpus);
+        calibrate_threads(wrapper, topo, wrapper->n_threads, wrapper->n_threads_batch);
+    }
+    // Slow cores only join in when a thread count needs more than the fast cluster
+    bool perf_only = std::max(wrapper->n_threads, wrapper->n_threads_batch) <= n_perf;
+    wrapper->cpus = perf_only ? topo.perf_cpus : topo.all_cpus;
+    if (calibrate && restore_mask) sched_setaffinity(0, sizeof(caller_mask), &caller_mask);
+
+    for (int i = 0; i < N_SEQ_MAX; i++) {
+        if (i != SEQ_SYSTEM) wrapper->samplers[i] = common_sampler_init(model, wrapper->sampler_params[i]);
+    }
+    llama_set_abort_callback(ctx, abort_if_stopped, wrapper);
+    wrapper->worker = std::thread(worker_loop, wrapper);
+
+    LOGD("nativeInit: Model loaded with %d decode / %d prefill threads on %zu of %zu cores, n_ctx %d, batch %d, KV type %d",
+         wrapper->n_threads, wrapper->n_threads_batch, wrapper->cpus.size(), topo.all_cpus.size(),
+         wrapper->n_ctx, wrapper->n_batch, (int) cparams.type_k);
+    return reinterpret_cast<jlong>(wrapper);
+}
+
+// Dimensions from the GGUF header in shape_index order, or null when it cannot be read
+JNIEXPORT jlongArray JNICALL
+Java_com_example_offlinellm_ContextPlanner_nativeReadShape(JNIEnv *env, jclass clazz, jstring model_path) {
+    const char * path = env->GetStringUTFChars(model_path, nullptr);
+    int64_t shape[SHAPE_COUNT] = {};
+    bool ok = read_shape(path, shape);
+    env->ReleaseStringUTFChars(model_path, path);
+    if (!ok) {
+        LOGE("nativeReadShape: no usable model dimensions in the GGUF header");
+        return nullptr;
+    }
+
+    jlongArray result = env->NewLongArray(SHAPE_COUNT);
+    jlong values[SHAPE_COUNT];
+    for (int i = 0; i < SHAPE_COUNT; i++) values[i] = shape[i];
+    env->SetLongArrayRegion(result, 0, SHAPE_COUNT, values);
+    return result;
+}
+
+// Reads a GenerationConfig.toNative array into the slot
+static void apply_config(JNIEnv * env, jdoubleArray config, gen_slot * slot) {
+    double c[CONFIG_COUNT] = {};
+    if (config && env->GetArrayLength(config) >= CONFIG_COUNT) {
+        env->GetDoubleArrayRegion(config, 0, CONFIG_COUNT, c);
+    }
+    slot->n_budget = c[CONFIG_MAX_TOKENS] > 0 ? (int) c[CONFIG_MAX_TOKENS] : N_PREDICT;
+    slot->n_remain = slot->n_budget;
+    slot->deadline_ms = c[CONFIG_DEADLINE_MS];
+    slot->first_token_deadline_ms = c[CONFIG_FIRST_TOKEN_DEADLINE_MS];
+    slot->shorten = c[CONFIG_SHORTEN] != 0;
+    slot->prompt_lookup = c[CONFIG_PROMPT_LOOKUP] != 0;
+
+    common_params_sampling & sp = slot->sparams;
+    if (c[CONFIG_TEMPERATURE] >= 0) sp.temp = (float) c[CONFIG_TEMPERATURE];
+    if (c[CONFIG_TOP_K] > 0) sp.top_k = (int32_t) c[CONFIG_TOP_K];
+    if (c[CONFIG_TOP_P] > 0) sp.top_p = (float) c[CONFIG_TOP_P];
+    if (c[CONFIG_MIN_P] >= 0) sp.min_p = (float) c[CONFIG_MIN_P];
+    if (c[CONFIG_REPEAT_PENALTY] > 0) sp.penalty_repeat = (float) c[CONFIG_REPEAT_PENALTY];
+    sp.seed = c[CONFIG_SEED] >= 0 ? (uint32_t) c[CONFIG_SEED] : LLAMA_DEFAULT_SEED;
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeGenerate(JNIEnv *env, jobject thiz, jlong ptr, jstring prompt, jboolean chat, jdoubleArray config, jobject stream, jobject cb) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper) return;
+
+    auto * slot = new gen_slot();
+    apply_config(env, config, slot);
+    slot->chat = chat;
+    if (!attach_stream(env, stream, { slot })) {
+        delete slot;
+        reject(env, cb, "Token stream buffer unavailable");
+        return;
+    }
+
+    const char * prompt_str = env->GetStringUTFChars(prompt, nullptr);
+    slot->text = prompt_str;
+    env->ReleaseStringUTFChars(prompt, prompt_str);
+
+    const char * rejected = nullptr;
+    {
+        std::lock_guard<std::mutex> lock(wrapper->sched_mutex);
+        bool used[N_SEQ_MAX] = {};
+        for (const gen_slot * s : wrapper->slots) used[s->seq] = true;
+
+        if (wrapper->closing) {
+            rejected = "Model is unloading";
+        } else if (wrapper->ctx_lost) {
+            rejected = "Model context is unavailable";
+        } else if (chat) {
+            // Java rejects a second chat while one is answering, so any chat still here was
+            // stopped and is finishing its current step; the new one queues behind it
+            slot->seq = SEQ_CHAT;
+            slot->cache = &wrapper->session_tokens;
+        } else {
+            slot->seq = -1;
+            for (int i = SEQ_SIDE_FIRST; i < N_SEQ_MAX && slot->seq < 0; i++) {
+                if (!used[i]) slot->seq = i;
+            }
+            if (slot->seq < 0) rejected = "Too many concurrent requests";
+            slot->cache = &slot->side_tokens;
+        }
+
+        if (!rejected) {
+            slot->cb = env->NewGlobalRef(cb);
+            wrapper->slots.push_back(slot);
+        }
+    }
+    if (rejected) {
+        delete slot;
+        reject(env, cb, rejected);
+        return;
+    }
+    wrapper->sched_cv.notify_all();
+}
 
-JNIEXPORT jlong JNICALL
-Java_com_example_offlinellm_LlamaInference_nativeInit(JNIEnv *env, jobject thiz, jstring model_path) {
-    const char * path = env->GetStringUTFChars(model_path, nullptr);
-    LOGD("nativeInit: Loading model from %s", path);
+JNIEXPORT void JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeGenerateCandidates(JNIEnv *env, jobject thiz, jlong ptr, jstring prompt, jint n_candidates, jdoubleArray config, jobject stream, jobject cb) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper) return;
 
-    llama_backend_init();
+    // The leader is a regular chat request; followers only differ by their sampler seed
+    const int n_max = std::max(1, std::min((int) n_candidates, N_SIDE_SEQS + 1));
+    std::vector<gen_slot *> slots;
+    for (int i = 0; i < n_max; i++) {
+        auto * s = new gen_slot();
+        apply_config(env, config, s);
+        s->candidate = i;
+        s->chat = true;
+        // A fixed seed would make every candidate the same answer
+        if (s->sparams.seed != LLAMA_DEFAULT_SEED) s->sparams.seed += i;
+        slots.push_back(s);
+    }
+    gen_slot * leader = slots[0];
+    leader->seq = SEQ_CHAT;
+    leader->cache = &wrapper->session_tokens;
 
-    auto mparams = llama_model_default_params();
-    mparams.n_gpu_layers = 0;
+    const char * prompt_str = env->GetStringUTFChars(prompt, nullptr);
+    leader->text = prompt_str;
+    env->ReleaseStringUTFChars(prompt, prompt_str);
 
-    llama_model * model = llama_model_load_from_file(path, mparams);
-    env->ReleaseStringUTFChars(model_path, path);
+    std::vector<gen_slot *> mine;
+    const char * rejected = nullptr;
+    if (!attach_stream(env, stream, slots)) {
+        rejected = "Token stream buffer unavailable";
+    } else {
+        std::lock_guard<std::mutex> lock(wrapper->sched_mutex);
+        bool used[N_SEQ_MAX] = {};
+        for (const gen_slot * s : wrapper->slots) used[s->seq] = true;
 
-    if (!model) {
-        LOGE("nativeInit: Failed to load model");
-        return 0;
+        if (wrapper->closing) {
+            rejected = "Model is unloading";
+        } else if (wrapper->ctx_lost) {
+            rejected = "Model context is unavailable";
+        } else {
+            mine.push_back(leader);
+            // As many followers as there are free side sequences
+            int next = SEQ_SIDE_FIRST;
+            for (int i = 1; i < n_max; i++) {
+                while (next < N_SEQ_MAX && used[next]) next++;
+                if (next >= N_SEQ_MAX) break;
+                gen_slot * f = slots[i];
+                f->seq = next++;
+                f->cache = &f->side_tokens;
+                f->fork_of = leader;
+                leader->forks.push_back(f);
+                mine.push_back(f);
+            }
+            auto * group = new gen_group();
+            group->pending = (int) mine.size();
+            for (gen_slot * s : mine) {
+                s->group = group;
+                s->cb = env->NewGlobalRef(cb);
+                wrapper->slots.push_back(s);
+            }
+        }
+    }
+    // Candidates without a free sequence, or all of them when rejected
+    for (gen_slot * s : slots) {
+        if (std::find(mine.begin(), mine.end(), s) == mine.end()) delete s;
+    }
+    if (rejected) {
+        reject(env, cb, rejected);
+        return;
     }
 
-    auto cparams = llama_context_default_params();
-    cparams.n_ctx = 4096;
-    cparams.n_batch = 512;  
-    cparams.n_ubatch = 512; 
-    
-    uint32_t n_threads = std::thread::hardware_concurrency();
-    if (n_threads >= 8) n_threads = 4; 
-    else if (n_threads > 4) n_threads = 4;
-    else if (n_threads < 1) n_threads = 1;
-    
-    cparams.n_threads = n_threads;
-    cparams.n_threads_batch = n_threads;
-    cparams.flash_attn_type = LLAMA_FLASH_ATTN_TYPE_ENABLED;
+    LOGD("nativeGenerateCandidates: %zu candidates", mine.size());
+    wrapper->sched_cv.notify_all();
+}
 
-    llama_context * ctx = llama_init_from_model(model, cparams);
+// Outcome of nativeReconfigure, in the order LlamaInference reads it
+enum reconfigure_result {
+    RECONFIGURE_KEPT_KV,
+    RECONFIGURE_CLEARED_KV,
+    // The new context could not be created; the previous configuration is back
+    RECONFIGURE_FAILED,
+    // Not even the previous configuration could be restored; the model has to be unloaded
+    RECONFIGURE_LOST,
+};
+
+// KV of one sequence serialized out of a context, to be put back once it is rebuilt
+static std::vector<uint8_t> save_seq(llama_context * ctx, llama_seq_id seq) {
+    std::vector<uint8_t> state(llama_state_seq_get_size(ctx, seq));
+    if (state.empty()) return state;
+    state.resize(llama_state_seq_get_data(ctx, state.data(), state.size(), seq));
+    return state;
+}
+
+// Rebuilds the chat context on the resident weights with another size, batch, KV type or
+// thread counts (0 / -1 keep the current value). The cached system prompt and chat move over
+// when the KV type is unchanged and they fit; otherwise the system prompt is decoded again and
+// the next turn re-reads the history. Adapters are applied again and an attached draft gets a
+// matching context. The threadpools are dropped; Java attaches new ones sized for the threads.
+JNIEXPORT jint JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeReconfigure(JNIEnv *env, jobject thiz, jlong ptr, jint n_ctx, jint n_batch,
+                                                            jint kv_type, jint n_threads, jint n_threads_batch, jboolean keep_kv) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper || !wrapper->ctx) return RECONFIGURE_FAILED;
+
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    {
+        std::lock_guard<std::mutex> sched_lock(wrapper->sched_mutex);
+        if (!wrapper->slots.empty()) return RECONFIGURE_FAILED;
+    }
+    auto start = std::chrono::steady_clock::now();
+
+    cpu_topology topo = read_cpu_topology();
+    const int n_cpus = (int) topo.all_cpus.size();
+    const int old_ctx = wrapper->n_ctx;
+    llama_context_params previous = chat_ctx_params(wrapper->n_ctx, wrapper->n_batch, wrapper->type_k,
+            wrapper->n_threads, wrapper->n_threads_batch);
+    llama_context_params cparams = chat_ctx_params(
+            n_ctx > 0 ? (int) n_ctx : wrapper->n_ctx,
+            n_batch > 0 ? (int) n_batch : wrapper->n_batch,
+            kv_type >= 0 ? kv_type_from_java(kv_type) : wrapper->type_k,
+            n_threads > 0 ? std::min((int) n_threads, n_cpus) : wrapper->n_threads,
+            n_threads_batch > 0 ? std::min((int) n_threads_batch, n_cpus) : wrapper->n_threads_batch);
+
+    // Cached cells move over only into a cache of the same element type with room to spare.
+    // The chat normally starts with the system prompt, whose cells it then shares again.
+    const auto & sys = wrapper->system_tokens;
+    const auto & chat = wrapper->session_tokens;
+    const bool chat_has_sys = !sys.empty() && chat.size() >= sys.size() && std::equal(sys.begin(), sys.end(), chat.begin());
+    const size_t n_cached = chat.size() + (chat_has_sys ? 0 : sys.size());
+    bool keep = keep_kv && cparams.type_k == wrapper->type_k && n_cached * 4 <= cparams.n_ctx * 3;
+    std::vector<uint8_t> sys_state, chat_state;
+    if (keep) {
+        if (!chat.empty()) chat_state = save_seq(wrapper->ctx, SEQ_CHAT);
+        if (!sys.empty() && !chat_has_sys) sys_state = save_seq(wrapper->ctx, SEQ_SYSTEM);
+    }
+
+    // Freed before the new one is made: shrinking under memory pressure cannot hold both
+    if (wrapper->draft_ctx) {
+        llama_batch_free(wrapper->draft_batch);
+        wrapper->draft_batch = {};
+        llama_free(wrapper->draft_ctx);
+        wrapper->draft_ctx = nullptr;
+        wrapper->draft_tokens.clear();
+    }
+    llama_free(wrapper->ctx);
+    wrapper->ctx = nullptr;
+    free_threadpools(wrapper);
+
+    jint result = RECONFIGURE_KEPT_KV;
+    llama_context * ctx = llama_init_from_model(wrapper->model, cparams);
     if (!ctx) {
-        LOGE("nativeInit: Failed to create context");
-        llama_model_free(model);
-        return 0;
+        LOGE("nativeReconfigure: failed to create the new context, restoring the previous one");
+        cparams = previous;
+        ctx = llama_init_from_model(wrapper->model, cparams);
+        result = RECONFIGURE_FAILED;
+    }
+    if (!ctx) {
+        LOGE("nativeReconfigure: previous context could not be restored either");
+        free_draft(wrapper);
+        wrapper->ctx_lost = true;
+        return RECONFIGURE_LOST;
     }
 
-    auto * wrapper = new llama_context_wrapper();
-    wrapper->model = model;
     wrapper->ctx = ctx;
-    wrapper->vocab = llama_model_get_vocab(model);
-    wrapper->n_batch = cparams.n_batch;
+    llama_set_abort_callback(ctx, abort_if_stopped, wrapper);
+    wrapper->n_ctx = llama_n_ctx(ctx);
+    wrapper->type_k = cparams.type_k;
+    wrapper->type_v = cparams.type_v;
+    wrapper->n_threads = cparams.n_threads;
+    wrapper->n_threads_batch = cparams.n_threads_batch;
+    bool perf_only = std::max(wrapper->n_threads, wrapper->n_threads_batch) <= (int) topo.perf_cpus.size();
+    wrapper->cpus = perf_only ? topo.perf_cpus : topo.all_cpus;
+    if ((int) cparams.n_batch != wrapper->n_batch) {
+        llama_batch_free(wrapper->batch);
+        wrapper->n_batch = cparams.n_batch;
+        wrapper->batch = llama_batch_init(wrapper->n_batch, 0, 1);
+    }
+    if (wrapper->n_keep_recent == old_ctx / 2) {
+        wrapper->n_keep_recent = wrapper->n_ctx / 2;
+    } else {
+        wrapper->n_keep_recent = std::max(0, std::min(wrapper->n_keep_recent, wrapper->n_ctx - 64));
+    }
+    for (size_t i = 0; i < wrapper->loras.size(); i++) {
+        if (wrapper->lora_scales[i] != 0.0f) llama_set_adapter_lora(ctx, wrapper->loras[i], wrapper->lora_scales[i]);
+    }
 
-    LOGD("nativeInit: Model loaded successfully with %u threads", n_threads);
-    return reinterpret_cast<jlong>(wrapper);
+    if (wrapper->draft_model) {
+        wrapper->draft_ctx = make_draft_ctx(wrapper, wrapper->draft_model);
+        if (wrapper->draft_ctx) {
+            wrapper->draft_batch = llama_batch_init(wrapper->n_batch, 0, 1);
+        } else {
+            LOGE("nativeReconfigure: draft context could not be rebuilt, detaching the draft");
+            free_draft(wrapper);
+        }
+    }
+
+    keep = keep && (chat_state.empty() || llama_state_seq_set_data(ctx, chat_state.data(), chat_state.size(), SEQ_CHAT) > 0)
+                && (sys_state.empty() || llama_state_seq_set_data(ctx, sys_state.data(), sys_state.size(), SEQ_SYSTEM) > 0);
+    if (keep) {
+        llama_memory_t mem = llama_get_memory(ctx);
+        if (chat_has_sys) llama_memory_seq_cp(mem, SEQ_CHAT, SEQ_SYSTEM, 0, (llama_pos) sys.size());
+        if (chat.empty()) reset_session(wrapper);
+    } else {
+        std::vector<llama_token> system_tokens = wrapper->system_tokens;
+        llama_memory_clear(llama_get_memory(ctx), true);
+        wrapper->system_tokens.clear();
+        wrapper->session_tokens.clear();
+        wrapper->evicted_tokens.clear();
+        if (!system_tokens.empty()) snapshot_system_prompt(wrapper, std::move(system_tokens));
+        if (result == RECONFIGURE_KEPT_KV) result = RECONFIGURE_CLEARED_KV;
+    }
+
+    LOGD("nativeReconfigure: n_ctx %d, batch %d, KV type %d, %d / %d threads, KV %s in %.0f ms",
+         wrapper->n_ctx, wrapper->n_batch, (int) wrapper->type_k, wrapper->n_threads, wrapper->n_threads_batch,
+         keep ? "kept" : "cleared", ms_since(start));
+    return result;
 }
 
-JNIEXPORT void JNICALL
-Java_com_example_offlinellm_LlamaInference_nativeGenerate(JNIEnv *env, jobject thiz, jlong ptr, jstring prompt, jobject cb) {
+// {n_ctx, n_batch, KV type, decode threads, prefill threads} of the current context
+JNIEXPORT jintArray JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeGetContextParams(JNIEnv *env, jobject thiz, jlong ptr) {
     auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
-    if (!wrapper) return;
+    jint values[5] = { 0, 0, 0, 0, 0 };
+    if (wrapper) {
+        std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+        values[0] = wrapper->n_ctx;
+        values[1] = wrapper->n_batch;
+        values[2] = kv_type_to_java(wrapper->type_k);
+        values[3] = wrapper->n_threads;
+        values[4] = wrapper->n_threads_batch;
+    }
+    jintArray result = env->NewIntArray(5);
+    env->SetIntArrayRegion(result, 0, 5, values);
+    return result;
+}
 
-    const char * prompt_str = env->GetStringUTFChars(prompt, nullptr);
-    std::string prompt_std(prompt_str);
-    env->ReleaseStringUTFChars(prompt, prompt_str);
+JNIEXPORT jboolean JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeSetThreadPool(JNIEnv *env, jobject thiz, jlong ptr, jint priority, jint poll, jboolean strict_cpu) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper || !wrapper->ctx) return JNI_FALSE;
 
-    jclass cbClass = env->GetObjectClass(cb);
-    jmethodID onTokenID = env->GetMethodID(cbClass, "onToken", "(Ljava/lang/String;)V");
-    jmethodID onStatusID = env->GetMethodID(cbClass, "onStatus", "(Ljava/lang/String;)V");
-    jmethodID onCompleteID = env->GetMethodID(cbClass, "onComplete", "()V");
-    jmethodID onErrorID = env->GetMethodID(cbClass, "onError", "(Ljava/lang/String;)V");
+    ggml_sched_priority prio = prio_from_java(priority);
+    ggml_threadpool * pool = make_threadpool(wrapper, wrapper->n_threads, prio, poll, strict_cpu);
+    ggml_threadpool * pool_batch = make_threadpool(wrapper, wrapper->n_threads_batch, prio, poll, strict_cpu);
+    if (!pool || !pool_batch) {
+        LOGE("nativeSetThreadPool: failed to create threadpools");
+        if (pool) ggml_threadpool_free(pool);
+        if (pool_batch) ggml_threadpool_free(pool_batch);
+        return JNI_FALSE;
+    }
 
-    wrapper->stop_requested = false;
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    llama_attach_threadpool(wrapper->ctx, pool, pool_batch);
+    if (wrapper->draft_ctx) llama_attach_threadpool(wrapper->draft_ctx, pool, pool_batch);
+    free_threadpools(wrapper);
+    wrapper->pool = pool;
+    wrapper->pool_batch = pool_batch;
 
-    // Tokenize
-    std::vector<llama_token> tokens = common_tokenize(wrapper->vocab, prompt_std, true, true);
-    
-    int n_past = 0;
-    int n_remain = 1024; // Increased from 512
-    int n_generated = 0;
+    LOGD("nativeSetThreadPool: %d + %d threads, priority %d, poll %d%s", wrapper->n_threads,
+         wrapper->n_threads_batch, (int) prio, (int) poll, strict_cpu ? ", one core per thread" : "");
+    return JNI_TRUE;
+}
+
+// Reads the whole model file into the page cache so llama.cpp's lazy mapping of it never takes
+// a major fault during the first reply. Needs no loaded context; progress goes to cb.onStatus.
+JNIEXPORT jboolean JNICALL
+Java_com_example_offlinellm_LlamaInference_nativePageIn(JNIEnv *env, jobject thiz, jlong ptr, jstring model_path, jobject cb) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper) return JNI_FALSE;
+    const char * path = env->GetStringUTFChars(model_path, nullptr);
+    size_t size = 0;
+    void * addr = map_model_file(path, size);
+    env->ReleaseStringUTFChars(model_path, path);
+    if (!addr) {
+        LOGE("nativePageIn: failed to map model file");
+        return JNI_FALSE;
+    }
+
+    // Start readahead of everything, then touch one byte per page in order, 16MB at a time
+    madvise(addr, size, MADV_SEQUENTIAL);
+    madvise(addr, size, MADV_WILLNEED);
+    const size_t page = (size_t) sysconf(_SC_PAGESIZE);
+    const size_t chunk = 16u << 20;
+    auto * bytes = static_cast<const volatile uint8_t *>(addr);
+    uint8_t sink = 0;
+    int reported = -1;
+    auto start = std::chrono::steady_clock::now();
+    bool cancelled = false;
+    for (size_t off = 0; off < size; off += chunk) {
+        if (wrapper->warmup_cancel) {
+            cancelled = true;
+            break;
+        }
+        size_t end = std::min(size, off + chunk);
+        for (size_t p = off; p < end; p += page) sink ^= bytes[p];
+
+        int percent = (int) (100 * end / size);
+        if (percent / 10 != reported / 10) {
+            reported = percent;
+            char status[64];
+            snprintf(status, sizeof(status), "Warming up model: %d%%", percent);
+            call_cb_string(env, cb, g_cb.on_status, status);
+        }
+    }
+    munmap(addr, size);
+
+    auto ms = std::chrono::duration_cast<std::chrono::milliseconds>(std::chrono::steady_clock::now() - start).count();
+    if (cancelled) {
+        LOGD("nativePageIn: cancelled after %lld ms", (long long) ms);
+        return JNI_FALSE;
+    }
+    LOGD("nativePageIn: %zu MB paged in in %lld ms (%d)", size >> 20, (long long) ms, sink);
+    return JNI_TRUE;
+}
+
+// Optionally locks the weights in RAM, then runs a one-token decode in a scratch sequence so
+// compute buffers, threadpools and the single-token graph are set up before the first reply.
+JNIEXPORT jboolean JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeWarmup(JNIEnv *env, jobject thiz, jlong ptr, jstring model_path, jboolean lock_memory) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper || wrapper->warmup_cancel) return JNI_FALSE;
 
-    auto sparams = common_params_sampling();
-    auto * sampler = common_sampler_init(wrapper->model, sparams);
+    // mlock faults in whatever is not resident, so it runs before taking ctx_mutex
+    void * addr = nullptr;
+    size_t size = 0;
+    if (lock_memory && !wrapper->locked_map) {
+        const char * path = env->GetStringUTFChars(model_path, nullptr);
+        addr = map_model_file(path, size);
+        env->ReleaseStringUTFChars(model_path, path);
+        if (addr && mlock(addr, size) != 0) {
+            // Usually RLIMIT_MEMLOCK; the page cache still holds the weights for now
+            LOGE("nativeWarmup: mlock failed (%s)", strerror(errno));
+            munmap(addr, size);
+            addr = nullptr;
+        }
+    }
 
-    // Initial batch for prompt
-    int initial_batch_size = tokens.size() > (size_t)wrapper->n_batch ? wrapper->n_batch : (int)tokens.size();
-    llama_batch batch = llama_batch_init(initial_batch_size, 0, 1);
-    
-    // Report prompt processing status
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    if (addr) {
+        if (!wrapper->locked_map) {
+            wrapper->locked_map = addr;
+            wrapper->locked_size = size;
+            LOGD("nativeWarmup: locked %zu MB of weights in RAM", size >> 20);
+        } else {
+            munmap(addr, size);
+        }
+    }
+    if (!wrapper->ctx || wrapper->warmup_cancel) return JNI_FALSE;
+    llama_seq_id seq = -1;
     {
-        char status[128];
-        snprintf(status, sizeof(status), "Processing prompt (%zu tokens)...", tokens.size());
-        jstring jstatus = env->NewStringUTF(status);
-        env->CallVoidMethod(cb, onStatusID, jstatus);
-        env->DeleteLocalRef(jstatus);
+        std::lock_guard<std::mutex> sched_lock(wrapper->sched_mutex);
+        bool used[N_SEQ_MAX] = {};
+        for (const gen_slot * s : wrapper->slots) used[s->seq] = true;
+        for (int i = SEQ_SIDE_FIRST; i < N_SEQ_MAX && seq < 0; i++) {
+            if (!used[i]) seq = i;
+        }
     }
+    // Every side sequence is busy, so decoding has already warmed up
+    if (seq < 0) return JNI_TRUE;
 
-    // Decode prompt in chunks
-    for (size_t i = 0; i < tokens.size(); i += wrapper->n_batch) {
-        if (wrapper->stop_requested) break;
-        
-        size_t n_eval = tokens.size() - i;
-        if (n_eval > (size_t)wrapper->n_batch) n_eval = wrapper->n_batch;
-        
-        batch.n_tokens = 0;
-        for (size_t j = 0; j < n_eval; j++) {
-            common_batch_add(batch, tokens[i + j], n_past + j, { 0 }, (i + j) == (tokens.size() - 1));
+    llama_memory_t mem = llama_get_memory(wrapper->ctx);
+    llama_batch & batch = wrapper->batch;
+    llama_token token = llama_vocab_bos(wrapper->vocab) >= 0 ? llama_vocab_bos(wrapper->vocab) : 0;
+    batch.n_tokens = 0;
+    common_batch_add(batch, token, 0, { seq }, true);
+    bool ok = llama_decode(wrapper->ctx, batch) == 0;
+    llama_memory_seq_rm(mem, seq, -1, -1);
+    pause_threadpools(wrapper);
+    return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+// Anonymous in-memory file for decrypted weights. Called directly: bionic only wraps
+// memfd_create from API 30, the syscall itself exists since Linux 3.17.
+JNIEXPORT jint JNICALL
+Java_com_example_offlinellm_DecryptedModel_nativeCreateMemfd(JNIEnv *env, jclass clazz, jstring name) {
+#ifdef __NR_memfd_create
+    const char * cname = env->GetStringUTFChars(name, nullptr);
+    int fd = (int) syscall(__NR_memfd_create, cname, MFD_CLOEXEC);
+    env->ReleaseStringUTFChars(name, cname);
+    if (fd < 0) LOGE("nativeCreateMemfd: %s", strerror(errno));
+    return fd;
+#else
+    return -1;
+#endif
+}
+
+// On-device re-quantization reads the decrypted source and writes the encrypted output as Java
+// streams, so neither plaintext copy ever exists whole: the header is parsed on its own, then
+// every tensor is converted a few megabytes of rows at a time in file order.
+static const size_t QUANT_IO_CHUNK = 1u << 20;
+// Rows converted per step are sized to this much f32
+static const size_t QUANT_ROWS_BYTES = 16u << 20;
+// Vocabularies make headers a few MB; anything past this is not a model header
+static const size_t QUANT_MAX_HEADER = 256u << 20;
+
+enum quantize_result {
+    QUANTIZE_OK = 0,
+    QUANTIZE_BAD_HEADER = -1,
+    QUANTIZE_READ_FAILED = -2,
+    QUANTIZE_WRITE_FAILED = -3,
+    QUANTIZE_CANCELLED = -4,
+    QUANTIZE_UNSUPPORTED = -5,
+};
+
+// Pulls bytes from a java.io.InputStream; whatever the header parse already read is served first
+struct java_reader {
+    JNIEnv * env;
+    jobject in;
+    jmethodID read;
+    jbyteArray buf;
+    std::vector<uint8_t> pending;
+    size_t pending_pos = 0;
+
+    // Appends up to n bytes from the stream to out; 0 at the end of the stream or on an exception
+    size_t pull(std::vector<uint8_t> & out, size_t n) {
+        jint got = env->CallIntMethod(in, read, buf, 0, (jint) std::min(n, QUANT_IO_CHUNK));
+        if (env->ExceptionCheck() || got <= 0) return 0;
+        size_t at = out.size();
+        out.resize(at + got);
+        env->GetByteArrayRegion(buf, 0, got, reinterpret_cast<jbyte *>(out.data() + at));
+        return (size_t) got;
+    }
+
+    bool read_exact(uint8_t * dst, size_t n) {
+        size_t from_pending = std::min(n, pending.size() - pending_pos);
+        memcpy(dst, pending.data() + pending_pos, from_pending);
+        pending_pos += from_pending;
+        dst += from_pending;
+        n -= from_pending;
+        while (n > 0) {
+            jint got = env->CallIntMethod(in, read, buf, 0, (jint) std::min(n, QUANT_IO_CHUNK));
+            if (env->ExceptionCheck() || got <= 0) return false;
+            env->GetByteArrayRegion(buf, 0, got, reinterpret_cast<jbyte *>(dst));
+            dst += got;
+            n -= got;
         }
-        
-        if (llama_decode(wrapper->ctx, batch)) {
-            LOGE("Failed to decode prompt chunk");
-            env->CallVoidMethod(cb, onErrorID, env->NewStringUTF("Failed to decode prompt"));
-            llama_batch_free(batch);
-            common_sampler_free(sampler);
-            return;
+        return true;
+    }
+
+    bool skip(size_t n) {
+        std::vector<uint8_t> scratch(std::min(n, QUANT_IO_CHUNK));
+        while (n > 0) {
+            size_t step = std::min(n, scratch.size());
+            if (!read_exact(scratch.data(), step)) return false;
+            n -= step;
         }
-        n_past += n_eval;
+        return true;
     }
+};
+
+struct java_writer {
+    JNIEnv * env;
+    jobject out;
+    jmethodID write;
+    jbyteArray buf;
 
-    auto start_time = std::chrono::high_resolution_clock::now();
+    bool write_all(const uint8_t * src, size_t n) {
+        while (n > 0) {
+            jint step = (jint) std::min(n, QUANT_IO_CHUNK);
+            env->SetByteArrayRegion(buf, 0, step, reinterpret_cast<const jbyte *>(src));
+            env->CallVoidMethod(out, write, buf, 0, step);
+            if (env->ExceptionCheck()) return false;
+            src += step;
+            n -= step;
+        }
+        return true;
+    }
 
-    while (n_remain > 0 && !wrapper->stop_requested) {
-        // Report status every 5 tokens
-        if (n_generated % 5 == 0) {
-            auto now = std::chrono::high_resolution_clock::now();
-            double duration = std::chrono::duration_cast<std::chrono::milliseconds>(now - start_time).count() / 1000.0;
-            double tps = duration > 0 ? n_generated / duration : 0;
-            
-            char status[128];
-            snprintf(status, sizeof(status), "Context: %d | Speed: %.1f t/s", n_past, tps);
-            jstring jstatus = env->NewStringUTF(status);
-            env->CallVoidMethod(cb, onStatusID, jstatus);
-            env->DeleteLocalRef(jstatus);
+    bool write_zeros(size_t n) {
+        static const uint8_t zeros[64] = {};
+        while (n > 0) {
+            size_t step = std::min(n, sizeof(zeros));
+            if (!write_all(zeros, step)) return false;
+            n -= step;
         }
+        return true;
+    }
+};
 
-        // Sample
-        llama_token id = common_sampler_sample(sampler, wrapper->ctx, -1);
-        common_sampler_accept(sampler, id, true);
+// gguf only parses files, so the header bytes go through a small memfd. Reads more of the
+// stream until the header parses, leaving everything read in reader.pending
+static gguf_context * read_gguf_header(java_reader & reader, ggml_context ** meta) {
+#ifdef __NR_memfd_create
+    int fd = (int) syscall(__NR_memfd_create, "gguf-header", MFD_CLOEXEC);
+#else
+    int fd = -1;
+#endif
+    if (fd < 0) return nullptr;
+    const std::string path = "/proc/self/fd/" + std::to_string(fd);
 
-        if (llama_vocab_is_eog(wrapper->vocab, id)) {
-            break;
+    gguf_context * gguf = nullptr;
+    size_t want = 8u << 20;
+    bool eof = false;
+    while (!gguf && want <= QUANT_MAX_HEADER) {
+        while (!eof && reader.pending.size() < want) {
+            if (reader.pull(reader.pending, want - reader.pending.size()) == 0) eof = true;
         }
+        if (reader.env->ExceptionCheck()) break;
+        if (pwrite(fd, reader.pending.data(), reader.pending.size(), 0) != (ssize_t) reader.pending.size()) break;
+        gguf_init_params params = { true, meta };
+        gguf = gguf_init_from_file(path.c_str(), params);
+        // A truncated header fails to parse; read further unless the stream has ended
+        if (!gguf && eof) break;
+        want *= 2;
+    }
+    close(fd);
+    return gguf;
+}
+
+static ggml_type ggml_type_from_java(jint type) {
+    switch (type) {
+        case 1: return GGML_TYPE_Q4_0;
+        case 2: return GGML_TYPE_Q3_K;
+        case 3: return GGML_TYPE_IQ4_XS;
+        case 4: return GGML_TYPE_IQ4_NL;
+        default: return GGML_TYPE_Q4_K;
+    }
+}
+
+// Layers llama's _M mixes give more bits: the first and last eighth and every third in between
+static bool use_more_bits(int layer, int n_layer) {
+    return layer < n_layer / 8 || layer >= 7 * n_layer / 8 || (layer - n_layer / 8) % 3 == 2;
+}
+
+static int layer_of(const std::string & name) {
+    int layer = -1;
+    return sscanf(name.c_str(), "blk.%d.", &layer) == 1 ? layer : -1;
+}
 
-        // Token to piece
-        char buf[256];
-        int n = llama_token_to_piece(wrapper->vocab, id, buf, sizeof(buf), 0, true);
-        if (n > 0) {
-            jstring jpiece = env->NewStringUTF(std::string(buf, n).c_str());
-            env->CallVoidMethod(cb, onTokenID, jpiece);
-            env->DeleteLocalRef(jpiece);
+// Target type of one tensor, after llama's quantizer: vectors (norms, biases) keep their type,
+// the output projection gets 6 bits, and the _M mixes give attn_v and ffn_down more bits in
+// some layers. A tensor never gets more bits than it already has.
+static ggml_type quantize_type_for(const ggml_tensor * t, jint java_type, ggml_type target, int n_layer, bool tied_output) {
+    const std::string name = ggml_get_name(t);
+    const bool is_weight = name.size() > 7 && name.compare(name.size() - 7, 7, ".weight") == 0;
+    if (ggml_n_dims(t) < 2 || !is_weight) return t->type;
+
+    ggml_type type = target;
+    const int layer = layer_of(name);
+    if (name == "output.weight" || (tied_output && name == "token_embd.weight")) {
+        type = GGML_TYPE_Q6_K;
+    } else if (java_type == 0 && layer >= 0 && use_more_bits(layer, n_layer)
+            && (name.find("attn_v.weight") != std::string::npos || name.find("ffn_down.weight") != std::string::npos)) {
+        type = GGML_TYPE_Q6_K;
+    } else if (java_type == 2 && layer >= 0) {
+        if (name.find("attn_v.weight") != std::string::npos) type = layer < 2 ? GGML_TYPE_Q5_K : GGML_TYPE_Q4_K;
+        else if (name.find("ffn_down.weight") != std::string::npos) type = layer < n_layer / 16 ? GGML_TYPE_Q5_K : GGML_TYPE_Q4_K;
+        else if (name.find("attn_output.weight") != std::string::npos) type = GGML_TYPE_Q4_K;
+    }
+    // Rows that do not fill whole blocks: llama falls back to a 32-wide type as well
+    if (t->ne[0] % ggml_blck_size(type) != 0) {
+        type = t->ne[0] % 32 == 0 ? GGML_TYPE_Q8_0 : GGML_TYPE_F16;
+    }
+    if (ggml_row_size(type, t->ne[0]) >= ggml_row_size(t->type, t->ne[0])) return t->type;
+    return type;
+}
+
+// Converts rows [0, n_rows) of one chunk: source type to f32 to the target type, split over threads
+static void convert_rows(ggml_type src_type, ggml_type dst_type, const uint8_t * src, float * f32, uint8_t * dst,
+                         int64_t n_rows, int64_t n_per_row, int n_threads) {
+    const size_t src_row = ggml_row_size(src_type, n_per_row);
+    const ggml_to_float_t to_float = ggml_get_type_traits(src_type)->to_float;
+    auto work = [&](int64_t r0, int64_t r1) {
+        if (r1 <= r0) return;
+        if (src_type == GGML_TYPE_F32) {
+            memcpy(f32 + r0 * n_per_row, src + r0 * src_row, (r1 - r0) * src_row);
+        } else {
+            to_float(src + r0 * src_row, f32 + r0 * n_per_row, (r1 - r0) * n_per_row);
         }
+        ggml_quantize_chunk(dst_type, f32, dst, r0 * n_per_row, r1 - r0, n_per_row, nullptr);
+    };
+    const int64_t per_thread = (n_rows + n_threads - 1) / n_threads;
+    std::vector<std::thread> workers;
+    for (int i = 1; i < n_threads; i++) {
+        workers.emplace_back(work, std::min(n_rows, i * per_thread), std::min(n_rows, (i + 1) * per_thread));
+    }
+    work(0, std::min(n_rows, per_thread));
+    for (std::thread & w : workers) w.join();
+}
 
-        // Prepare next batch (single token)
-        batch.n_tokens = 0;
-        common_batch_add(batch, id, n_past, { 0 }, true);
-        
-        // Decode next token
-        if (llama_decode(wrapper->ctx, batch)) {
-            LOGE("Failed to decode token");
+// Re-quantizes a GGUF model from one stream to another. Memory stays bounded by the header and
+// one chunk of rows in source, f32 and target form, whatever the model size. Progress goes to
+// onQuantizeProgress and the worker's isStopped() is checked between chunks. Returns a
+// quantize_result; an exception thrown by either stream is left pending for the caller.
+JNIEXPORT jint JNICALL
+Java_com_example_offlinellm_ModelQuantizeWorker_nativeQuantize(JNIEnv *env, jobject thiz, jobject input, jobject output, jint type, jint n_threads) {
+    jclass worker_class = env->GetObjectClass(thiz);
+    jmethodID on_progress = env->GetMethodID(worker_class, "onQuantizeProgress", "(JJ)V");
+    jmethodID is_stopped = env->GetMethodID(worker_class, "isStopped", "()Z");
+
+    java_reader reader = { env, input, env->GetMethodID(env->FindClass("java/io/InputStream"), "read", "([BII)I"), env->NewByteArray(QUANT_IO_CHUNK) };
+    java_writer writer = { env, output, env->GetMethodID(env->FindClass("java/io/OutputStream"), "write", "([BII)V"), env->NewByteArray(QUANT_IO_CHUNK) };
+
+    ggml_context * meta = nullptr;
+    gguf_context * src = read_gguf_header(reader, &meta);
+    if (!src) {
+        if (meta) ggml_free(meta);
+        if (env->ExceptionCheck()) return QUANTIZE_READ_FAILED;
+        LOGE("nativeQuantize: source is not a readable GGUF model");
+        return QUANTIZE_BAD_HEADER;
+    }
+
+    const ggml_type target = ggml_type_from_java(type);
+    int64_t arch_id = gguf_find_key(src, "general.architecture");
+    std::string arch = arch_id >= 0 ? gguf_get_val_str(src, arch_id) : "llama";
+    const int n_layer = (int) std::max<int64_t>(1, gguf_int(src, arch + ".block_count"));
+    const bool tied_output = gguf_find_tensor(src, "output.weight") < 0;
+
+    // Tensors in file order, so the source is read front to back exactly once
+    struct job {
+        ggml_tensor * tensor;
+        size_t offset;
+        ggml_type type;
+    };
+    std::vector<job> jobs;
+    uint64_t total_bytes = 0;
+    const size_t data_offset = gguf_get_data_offset(src);
+    for (ggml_tensor * t = ggml_get_first_tensor(meta); t; t = ggml_get_next_tensor(meta, t)) {
+        int64_t id = gguf_find_tensor(src, ggml_get_name(t));
+        ggml_type dst_type = quantize_type_for(t, type, target, n_layer, tied_output);
+        if (dst_type != t->type && (t->type != GGML_TYPE_F32 && !ggml_get_type_traits(t->type)->to_float)) dst_type = t->type;
+        jobs.push_back({ t, data_offset + gguf_get_tensor_offset(src, id), dst_type });
+        total_bytes += ggml_nbytes(t);
+    }
+    std::sort(jobs.begin(), jobs.end(), [](const job & a, const job & b) { return a.offset < b.offset; });
+
+    // Same metadata with the new file type; tensor offsets are laid out again for the new sizes
+    gguf_context * dst = gguf_init_empty();
+    gguf_set_kv(dst, src);
+    gguf_set_val_u32(dst, "general.quantization_version", GGML_QNT_VERSION);
+    gguf_set_val_u32(dst, "general.file_type", ftype_from_java(type));
+    for (const job & j : jobs) {
+        gguf_add_tensor(dst, j.tensor);
+        gguf_set_tensor_type(dst, ggml_get_name(j.tensor), j.type);
+        if (j.type != j.tensor->type) ggml_quantize_init(j.type);
+    }
+    const size_t alignment = gguf_get_alignment(dst);
+
+    int rc = QUANTIZE_OK;
+    std::vector<uint8_t> header(gguf_get_meta_size(dst));
+    gguf_get_meta_data(dst, header.data());
+    if (!writer.write_all(header.data(), header.size())) rc = QUANTIZE_WRITE_FAILED;
+
+    auto start = std::chrono::steady_clock::now();
+    uint64_t done_bytes = 0;
+    uint64_t written = header.size();
+    size_t in_pos = reader.pending_pos = data_offset;
+    std::vector<uint8_t> src_buf, dst_buf;
+    std::vector<float> f32_buf;
+    const int threads = std::max(1, (int) n_threads);
+
+    for (size_t i = 0; i < jobs.size() && rc == QUANTIZE_OK; i++) {
+        const job & j = jobs[i];
+        ggml_tensor * t = j.tensor;
+        if (j.offset < in_pos) {
+            LOGE("nativeQuantize: overlapping tensor %s", ggml_get_name(t));
+            rc = QUANTIZE_UNSUPPORTED;
+            break;
+        }
+        if (j.type != t->type && ggml_quantize_requires_imatrix(j.type)) {
+            rc = QUANTIZE_UNSUPPORTED;
+            break;
+        }
+        if (!reader.skip(j.offset - in_pos)) {
+            rc = QUANTIZE_READ_FAILED;
             break;
         }
+        in_pos = j.offset;
 
-        n_past += 1;
-        n_remain--;
-        n_generated++;
+        const int64_t n_per_row = t->ne[0];
+        const int64_t n_rows = ggml_nrows(t);
+        const size_t src_row = ggml_row_size(t->type, n_per_row);
+        const size_t dst_row = ggml_row_size(j.type, n_per_row);
+        const int64_t chunk_rows = std::max<int64_t>(1, (int64_t) (QUANT_ROWS_BYTES / (n_per_row * sizeof(float))));
+
+        for (int64_t r = 0; r < n_rows && rc == QUANTIZE_OK; r += chunk_rows) {
+            const int64_t rows = std::min(chunk_rows, n_rows - r);
+            src_buf.resize(rows * src_row);
+            if (!reader.read_exact(src_buf.data(), src_buf.size())) {
+                rc = QUANTIZE_READ_FAILED;
+                break;
+            }
+            in_pos += src_buf.size();
+            bool ok;
+            if (j.type == t->type) {
+                ok = writer.write_all(src_buf.data(), src_buf.size());
+            } else {
+                f32_buf.resize(rows * n_per_row);
+                dst_buf.resize(rows * dst_row);
+                convert_rows(t->type, j.type, src_buf.data(), f32_buf.data(), dst_buf.data(), rows, n_per_row, threads);
+                ok = writer.write_all(dst_buf.data(), dst_buf.size());
+            }
+            if (!ok) {
+                rc = QUANTIZE_WRITE_FAILED;
+                break;
+            }
+            written += rows * (j.type == t->type ? src_row : dst_row);
+            done_bytes += src_buf.size();
+
+            if (on_progress) call_cb(env, thiz, on_progress, (jlong) done_bytes, (jlong) total_bytes);
+            if (is_stopped && env->CallBooleanMethod(thiz, is_stopped)) rc = QUANTIZE_CANCELLED;
+        }
+        // Tensor data is aligned in the output as gguf laid it out
+        const size_t dst_bytes = ggml_row_size(j.type, n_per_row) * n_rows;
+        if (rc == QUANTIZE_OK && !writer.write_zeros(GGML_PAD(dst_bytes, alignment) - dst_bytes)) rc = QUANTIZE_WRITE_FAILED;
+        written += GGML_PAD(dst_bytes, alignment) - dst_bytes;
     }
 
-    llama_batch_free(batch);
+    LOGD("nativeQuantize: %zu tensors, %llu MB -> %llu MB to %s in %.0f s, rc %d", jobs.size(),
+         (unsigned long long) (total_bytes >> 20), (unsigned long long) (written >> 20), ggml_type_name(target), ms_since(start) / 1000, rc);
+    gguf_free(dst);
+    gguf_free(src);
+    ggml_free(meta);
+    env->DeleteLocalRef(reader.buf);
+    env->DeleteLocalRef(writer.buf);
+    return rc;
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeGetThreadCounts(JNIEnv *env, jobject thiz, jlong ptr) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    jint counts[2] = { 0, 0 };
+    if (wrapper) {
+        counts[0] = wrapper->n_threads;
+        counts[1] = wrapper->n_threads_batch;
+    }
+    jintArray result = env->NewIntArray(2);
+    env->SetIntArrayRegion(result, 0, 2, counts);
+    return result;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeSetSystemPrompt(JNIEnv *env, jobject thiz, jlong ptr, jstring prompt) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper || !wrapper->ctx) return JNI_FALSE;
+
+    const char * prompt_str = env->GetStringUTFChars(prompt, nullptr);
+    std::vector<llama_token> tokens = common_tokenize(wrapper->vocab, prompt_str, true, true);
+    env->ReleaseStringUTFChars(prompt, prompt_str);
+
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    return snapshot_system_prompt(wrapper, std::move(tokens)) ? JNI_TRUE : JNI_FALSE;
+}
+
+// Loads a GGUF LoRA adapter for the resident model without applying it; 0 on failure
+JNIEXPORT jlong JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeLoadLora(JNIEnv *env, jobject thiz, jlong ptr, jstring path) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper || !wrapper->model) return 0;
+
+    const char * path_str = env->GetStringUTFChars(path, nullptr);
+    // Reads the adapter tensors into their own buffers; the file is not needed afterwards
+    llama_adapter_lora * adapter = llama_adapter_lora_init(wrapper->model, path_str);
+    env->ReleaseStringUTFChars(path, path_str);
+    if (!adapter) {
+        LOGE("nativeLoadLora: adapter does not match the model or is not a LoRA GGUF");
+        return 0;
+    }
+
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    wrapper->loras.push_back(adapter);
+    wrapper->lora_scales.push_back(0.0f);
+    return reinterpret_cast<jlong>(adapter);
+}
+
+// Applies an adapter with `scale`, or removes it from the context when scale is 0. The KV was
+// computed with the old weights, so every cached sequence is dropped, the system prompt is
+// decoded again and the next turn re-reads the conversation. Refused while requests run.
+JNIEXPORT jboolean JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeSetLora(JNIEnv *env, jobject thiz, jlong ptr, jlong handle, jfloat scale) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    auto * adapter = reinterpret_cast<llama_adapter_lora *>(handle);
+    if (!wrapper || !wrapper->ctx) return JNI_FALSE;
+
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    auto it = std::find(wrapper->loras.begin(), wrapper->loras.end(), adapter);
+    if (it == wrapper->loras.end()) return JNI_FALSE;
+    {
+        std::lock_guard<std::mutex> sched_lock(wrapper->sched_mutex);
+        if (!wrapper->slots.empty()) return JNI_FALSE;
+    }
 
-    common_sampler_free(sampler);
-    if (!wrapper->stop_requested) {
-        env->CallVoidMethod(cb, onCompleteID);
+    if (scale != 0.0f) {
+        if (llama_set_adapter_lora(wrapper->ctx, adapter, scale) != 0) return JNI_FALSE;
+    } else {
+        llama_rm_adapter_lora(wrapper->ctx, adapter);
     }
+    wrapper->lora_scales[it - wrapper->loras.begin()] = scale;
+    auto start = std::chrono::steady_clock::now();
+    std::vector<llama_token> system_tokens = wrapper->system_tokens;
+    llama_memory_clear(llama_get_memory(wrapper->ctx), true);
+    wrapper->session_tokens.clear();
+    wrapper->evicted_tokens.clear();
+    if (!system_tokens.empty()) snapshot_system_prompt(wrapper, std::move(system_tokens));
+    LOGD("nativeSetLora: adapter scale %.2f applied in %.0f ms", scale, ms_since(start));
+    return JNI_TRUE;
+}
+
+// Frees an adapter that is no longer applied
+JNIEXPORT void JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeFreeLora(JNIEnv *env, jobject thiz, jlong ptr, jlong handle) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    auto * adapter = reinterpret_cast<llama_adapter_lora *>(handle);
+    if (!wrapper) return;
+
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    auto it = std::find(wrapper->loras.begin(), wrapper->loras.end(), adapter);
+    if (it == wrapper->loras.end()) return;
+    wrapper->lora_scales.erase(wrapper->lora_scales.begin() + (it - wrapper->loras.begin()));
+    wrapper->loras.erase(it);
+    llama_adapter_lora_free(adapter);
 }
 
 JNIEXPORT void JNICALL
 Java_com_example_offlinellm_LlamaInference_nativeClearKV(JNIEnv *env, jobject thiz, jlong ptr) {
     auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
     if (wrapper && wrapper->ctx) {
-        llama_memory_seq_rm(llama_get_memory(wrapper->ctx), -1, -1, -1);
+        std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+        reset_session(wrapper);
+    }
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeSaveState(JNIEnv *env, jobject thiz, jlong ptr, jstring path) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper || !wrapper->ctx) return JNI_FALSE;
+
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    if (wrapper->session_tokens.empty()) return JNI_FALSE;
+    const char * cpath = env->GetStringUTFChars(path, nullptr);
+    size_t written = llama_state_seq_save_file(wrapper->ctx, cpath, SEQ_CHAT,
+            wrapper->session_tokens.data(), wrapper->session_tokens.size());
+    env->ReleaseStringUTFChars(path, cpath);
+
+    LOGD("nativeSaveState: %zu tokens, %zu bytes", wrapper->session_tokens.size(), written);
+    return written > 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeLoadState(JNIEnv *env, jobject thiz, jlong ptr, jstring path) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper || !wrapper->ctx) return JNI_FALSE;
+
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    llama_memory_seq_rm(llama_get_memory(wrapper->ctx), SEQ_CHAT, -1, -1);
+    wrapper->session_tokens.clear();
+    wrapper->evicted_tokens.clear();
+
+    std::vector<llama_token> tokens(wrapper->n_ctx);
+    size_t n_loaded = 0;
+    const char * cpath = env->GetStringUTFChars(path, nullptr);
+    size_t read = llama_state_seq_load_file(wrapper->ctx, cpath, SEQ_CHAT, tokens.data(), tokens.size(), &n_loaded);
+    env->ReleaseStringUTFChars(path, cpath);
+
+    if (read == 0) {
+        // Wrong model, KV type or a truncated file: leave a clean cache behind
+        LOGE("nativeLoadState: failed to restore state");
+        reset_session(wrapper);
+        return JNI_FALSE;
+    }
+
+    tokens.resize(n_loaded);
+    wrapper->session_tokens = std::move(tokens);
+    LOGD("nativeLoadState: restored %zu tokens", n_loaded);
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeAttachDraft(JNIEnv *env, jobject thiz, jlong ptr, jstring model_path, jint n_draft) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper || !wrapper->ctx) return JNI_FALSE;
+
+    std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+    free_draft(wrapper);
+
+    const char * path = env->GetStringUTFChars(model_path, nullptr);
+    LOGD("nativeAttachDraft: Loading draft model from %s", path);
+    auto mparams = llama_model_default_params();
+    mparams.n_gpu_layers = 0;
+    llama_model * model = llama_model_load_from_file(path, mparams);
+    env->ReleaseStringUTFChars(model_path, path);
+
+    if (!model) {
+        LOGE("nativeAttachDraft: Failed to load draft model");
+        return JNI_FALSE;
+    }
+    if (!vocabs_compatible(llama_model_get_vocab(model), wrapper->vocab)) {
+        LOGE("nativeAttachDraft: Draft vocabulary does not match the target");
+        llama_model_free(model);
+        return JNI_FALSE;
+    }
+
+    llama_context * ctx = make_draft_ctx(wrapper, model);
+    if (!ctx) {
+        LOGE("nativeAttachDraft: Failed to create draft context");
+        llama_model_free(model);
+        return JNI_FALSE;
+    }
+
+    wrapper->draft_model = model;
+    wrapper->draft_ctx = ctx;
+    // Drafting runs on the worker between target steps, so it can share the target's pools
+    if (wrapper->pool) llama_attach_threadpool(ctx, wrapper->pool, wrapper->pool_batch);
+    wrapper->draft_batch = llama_batch_init(wrapper->n_batch, 0, 1);
+    wrapper->n_draft = std::max(1, std::min((int) n_draft, 16));
+    wrapper->n_drafted = 0;
+    wrapper->n_accepted = 0;
+
+    LOGD("nativeAttachDraft: Draft attached, proposing %d tokens per step", wrapper->n_draft);
+    return JNI_TRUE;
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeDetachDraft(JNIEnv *env, jobject thiz, jlong ptr) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (wrapper) {
+        std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+        free_draft(wrapper);
+    }
+}
+
+JNIEXPORT jlongArray JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeGetDraftStats(JNIEnv *env, jobject thiz, jlong ptr) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    jlong stats[2] = { 0, 0 };
+    if (wrapper) {
+        stats[0] = wrapper->n_drafted;
+        stats[1] = wrapper->n_accepted;
+    }
+    jlongArray result = env->NewLongArray(2);
+    env->SetLongArrayRegion(result, 0, 2, stats);
+    return result;
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeSetContextShift(JNIEnv *env, jobject thiz, jlong ptr, jint n_keep_recent) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (wrapper) {
+        // The worker reads it while shifting, and reconfigure changes n_ctx
+        std::lock_guard<std::mutex> lock(wrapper->ctx_mutex);
+        wrapper->n_keep_recent = std::max(0, std::min((int) n_keep_recent, wrapper->n_ctx - 64));
+    }
+}
+
+JNIEXPORT jobjectArray JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeEmbed(JNIEnv *env, jobject thiz, jlong ptr, jobjectArray texts, jint pooling, jboolean normalize) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (!wrapper || !wrapper->model || wrapper->ctx_lost) return nullptr;
+
+    std::vector<std::string> input;
+    const jsize n = env->GetArrayLength(texts);
+    for (jsize i = 0; i < n; i++) {
+        auto text = (jstring) env->GetObjectArrayElement(texts, i);
+        const char * chars = text ? env->GetStringUTFChars(text, nullptr) : nullptr;
+        input.emplace_back(chars ? chars : "");
+        if (chars) env->ReleaseStringUTFChars(text, chars);
+        if (text) env->DeleteLocalRef(text);
+    }
+
+    auto start = std::chrono::steady_clock::now();
+    std::vector<float> embd;
+    if (!ensure_embd_ctx(wrapper, pooling_from_java(pooling)) || !embed_texts(wrapper, input, normalize, embd)) {
+        return nullptr;
+    }
+    const int n_embd = llama_model_n_embd(wrapper->model);
+    LOGD("nativeEmbed: %d texts in %.0f ms", (int) n, ms_since(start));
+
+    jobjectArray result = env->NewObjectArray(n, env->FindClass("[F"), nullptr);
+    for (jsize i = 0; i < n; i++) {
+        jfloatArray row = env->NewFloatArray(n_embd);
+        env->SetFloatArrayRegion(row, 0, n_embd, embd.data() + (size_t) i * n_embd);
+        env->SetObjectArrayElement(result, i, row);
+        env->DeleteLocalRef(row);
     }
+    return result;
 }
 
 JNIEXPORT void JNICALL
 Java_com_example_offlinellm_LlamaInference_nativeStop(JNIEnv *env, jobject thiz, jlong ptr) {
     auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
     if (wrapper) {
-        wrapper->stop_requested = true;
+        std::lock_guard<std::mutex> lock(wrapper->sched_mutex);
+        for (gen_slot * s : wrapper->slots) {
+            if (s->chat) s->stop = true;
+        }
     }
 }
 
+JNIEXPORT void JNICALL
+Java_com_example_offlinellm_LlamaInference_nativeCancelWarmup(JNIEnv *env, jobject thiz, jlong ptr) {
+    auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
+    if (wrapper) wrapper->warmup_cancel = true;
+}
+
 JNIEXPORT void JNICALL
 Java_com_example_offlinellm_LlamaInference_nativeFree(JNIEnv *env, jobject thiz, jlong ptr) {
     auto * wrapper = reinterpret_cast<llama_context_wrapper *>(ptr);
     if (wrapper) {
+        // Stop every request; the worker retires them and exits once the queue is empty
+        {
+            std::lock_guard<std::mutex> lock(wrapper->sched_mutex);
+            wrapper->closing = true;
+            for (gen_slot * s : wrapper->slots) s->stop = true;
+        }
+        wrapper->sched_cv.notify_all();
+        if (wrapper->worker.joinable()) wrapper->worker.join();
+
+        free_draft(wrapper);
+        for (common_sampler * sampler : wrapper->samplers) {
+            if (sampler) common_sampler_free(sampler);
+        }
+        llama_batch_free(wrapper->batch);
+        if (wrapper->embd_ctx) llama_free(wrapper->embd_ctx);
+        if (wrapper->embd_batch.token) llama_batch_free(wrapper->embd_batch);
         if (wrapper->ctx) llama_free(wrapper->ctx);
+        for (llama_adapter_lora * adapter : wrapper->loras) llama_adapter_lora_free(adapter);
+        free_threadpools(wrapper);
+        if (wrapper->locked_map) munmap(wrapper->locked_map, wrapper->locked_size);
         if (wrapper->model) llama_model_free(wrapper->model);
         delete wrapper;
     }
@@ -154,6 +154,15 @@ public class ChatActivity extends AppCompatActivity {
                 });
             }
 
+            @Override
+            public void onContextShift(int droppedTokens) {
+                runOnUiThread(() -> {
+                    if (isDestroyed()) return;
+                    responseMessage.setStatus("Context shifted: " + droppedTokens + " old tokens dropped");
+                    adapter.notifyItemChanged(responseIndex);
+                });
+            }
+
             @Override
             public void onComplete() {
                 runOnUiThread(() -> {
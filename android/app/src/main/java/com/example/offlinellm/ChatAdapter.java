@@ -33,6 +33,7 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ViewHolder> {
         void onRegenerate(ChatMessage message);
         void onMakeLonger(ChatMessage message);
         void onMakeShorter(ChatMessage message);
+        void onSelectCandidate(ChatMessage message, int index);
     }
 
     public ChatAdapter(List<ChatMessage> messages) {
@@ -174,6 +175,23 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ViewHolder> {
         });
 
         boolean generating = message.isGenerating();
+        int count = message.getCandidateCount();
+        if (count > 1 && !generating) {
+            int index = message.getCandidateIndex();
+            holder.candidateSwitcher.setVisibility(View.VISIBLE);
+            holder.candidateCounter.setText((index + 1) + "/" + count);
+            holder.btnCandidatePrev.setAlpha(index > 0 ? 1.0f : 0.4f);
+            holder.btnCandidateNext.setAlpha(index < count - 1 ? 1.0f : 0.4f);
+            holder.btnCandidatePrev.setOnClickListener(v -> {
+                if (actionListener != null && index > 0) actionListener.onSelectCandidate(message, index - 1);
+            });
+            holder.btnCandidateNext.setOnClickListener(v -> {
+                if (actionListener != null && index < count - 1) actionListener.onSelectCandidate(message, index + 1);
+            });
+        } else {
+            holder.candidateSwitcher.setVisibility(View.GONE);
+        }
+
         holder.btnAiRetry.setEnabled(!generating);
         holder.btnAiLonger.setEnabled(!generating);
         holder.btnAiShorter.setEnabled(!generating);
@@ -236,9 +254,10 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ViewHolder> {
     }
 
     static class ViewHolder extends RecyclerView.ViewHolder {
-        LinearLayout userMessageContainer, aiMessageContainer, codeBlocksContainer, aiActionsLayout, metadataLayout, thinkingLayout;
+        LinearLayout userMessageContainer, aiMessageContainer, codeBlocksContainer, aiActionsLayout, metadataLayout, thinkingLayout, candidateSwitcher;
         MaterialCardView bubbleLayout, aiBubbleLayout, thoughtContainer;
         TextView messageText, userTimestamp, aiMessageText, aiTimestamp, responseTimeText, thoughtText, thinkingStatusText;
+        TextView btnCandidatePrev, candidateCounter, btnCandidateNext;
         ImageButton btnUserCopy, btnUserEdit, btnAiCopy, btnAiDownload, btnAiRetry, btnAiLonger, btnAiShorter;
 
         ViewHolder(View view) {
@@ -266,6 +285,10 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ViewHolder> {
             btnAiRetry = view.findViewById(R.id.btnAiRetry);
             btnAiLonger = view.findViewById(R.id.btnAiLonger);
             btnAiShorter = view.findViewById(R.id.btnAiShorter);
+            candidateSwitcher = view.findViewById(R.id.candidateSwitcher);
+            btnCandidatePrev = view.findViewById(R.id.btnCandidatePrev);
+            candidateCounter = view.findViewById(R.id.candidateCounter);
+            btnCandidateNext = view.findViewById(R.id.btnCandidateNext);
         }
     }
 }
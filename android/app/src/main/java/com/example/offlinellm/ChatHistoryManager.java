@@ -165,6 +165,7 @@ public class ChatHistoryManager {
         if (session != null) {
             sessions.remove(session);
             saveSessions();
+            new SessionStateStore(context).removeSession(sessionId);
             
             // If deleted session was active, clear active session
             if (sessionId.equals(activeSessionId)) {
@@ -204,6 +205,7 @@ public class ChatHistoryManager {
 
     public void clearAllSessions() {
         sessions.clear();
+        new SessionStateStore(context).clear();
         activeSessionId = null;
         prefs.edit().remove(ACTIVE_SESSION_ID_KEY).apply();
         saveSessions();
@@ -1,7 +1,9 @@
 package com.example.offlinellm;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class ChatMessage {
@@ -14,6 +16,11 @@ public class ChatMessage {
     private long responseTimeMs;
     private String status;
     private boolean isGenerating;
+    // Alternative answers from a multi-candidate regenerate; text holds the one shown
+    private List<String> candidates;
+    private int candidateIndex;
+    // Native performance numbers of the generation that produced this answer
+    private GenerationMetrics metrics;
 
     public ChatMessage(String sender, String text) {
         this.sender = sender;
@@ -46,6 +53,23 @@ public class ChatMessage {
     public void setResponseTimeMs(long responseTimeMs) { this.responseTimeMs = responseTimeMs; }
     public boolean isGenerating() { return isGenerating; }
     public void setGenerating(boolean generating) { isGenerating = generating; }
+    public int getCandidateCount() { return candidates == null ? 0 : candidates.size(); }
+    public int getCandidateIndex() { return candidateIndex; }
+    public GenerationMetrics getMetrics() { return metrics; }
+    public void setMetrics(GenerationMetrics metrics) { this.metrics = metrics; }
+
+    public void appendCandidate(int index, String token) {
+        if (candidates == null) candidates = new ArrayList<>();
+        while (candidates.size() <= index) candidates.add("");
+        candidates.set(index, candidates.get(index) + token);
+    }
+
+    public void selectCandidate(int index) {
+        if (candidates == null || index < 0 || index >= candidates.size() || index == candidateIndex) return;
+        candidates.set(candidateIndex, text);
+        text = candidates.get(index);
+        candidateIndex = index;
+    }
 
     public String getFormattedTime() {
         SimpleDateFormat sdf = new SimpleDateFormat("HH:mm", Locale.getDefault());
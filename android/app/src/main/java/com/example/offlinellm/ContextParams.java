@@ -0,0 +1,21 @@
+package com.example.offlinellm;
+
+/**
+ * Settings of the llama context that LlamaInference.reconfigure can change on a loaded model
+ * without reading the weights again. Zero (or null) keeps the current value.
+ */
+public class ContextParams {
+    public int contextSize = 0;
+    public int batchSize = 0;
+    public LlamaInference.KvCacheType kvCacheType = null;
+    public int decodeThreads = 0;
+    public int prefillThreads = 0;
+    // Move the cached conversation over; only possible when the KV type stays and it still fits
+    public boolean keepKv = true;
+
+    @Override
+    public String toString() {
+        return "n_ctx " + contextSize + ", batch " + batchSize + ", KV " + kvCacheType
+                + ", threads " + decodeThreads + "/" + prefillThreads;
+    }
+}
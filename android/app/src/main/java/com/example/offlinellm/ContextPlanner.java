@@ -0,0 +1,138 @@
+package com.example.offlinellm;
+
+import android.util.Log;
+
+/**
+ * Sizes the llama context from the model's GGUF header and the RAM left on the device. KV cache
+ * and compute buffers are computed from the layer, head and vocabulary sizes, and the largest
+ * context, KV type and batch size that fit are chosen, so a load either fits or is refused up front.
+ */
+class ContextPlanner {
+    private static final String TAG = "ContextPlanner";
+
+    // Largest context tried; past this a phone spends minutes on a full prefill anyway
+    private static final int MAX_CTX = 16384;
+    private static final int MIN_CTX = 1024;
+    private static final int[] BATCH_SIZES = {512, 256, 128};
+    // Output rows kept per decode: a token per sequence plus drafted tokens to verify
+    private static final int OUTPUT_ROWS = 16;
+    // Left free for the app itself, the embedding context and allocator slack
+    private static final long RESERVE_BYTES = 384L * 1024 * 1024;
+
+    /** Model dimensions, in the order of shape_index in native-lib-v2.cpp. */
+    static final class Shape {
+        long nLayer;
+        long nEmbd;
+        long nHead;
+        long nHeadKv;
+        long headDimK;
+        long headDimV;
+        long nFf;
+        long nVocab;
+        long nCtxTrain;
+        long weightBytes;
+    }
+
+    static final class Plan {
+        final int nCtx;
+        final int nBatch;
+        final LlamaInference.KvCacheType kvType;
+        // KV cache plus compute buffers, without the weights
+        final long contextBytes;
+
+        Plan(int nCtx, int nBatch, LlamaInference.KvCacheType kvType, long contextBytes) {
+            this.nCtx = nCtx;
+            this.nBatch = nBatch;
+            this.kvType = kvType;
+            this.contextBytes = contextBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "n_ctx " + nCtx + ", batch " + nBatch + ", KV " + kvType + ", " + (contextBytes / 1024 / 1024) + "MB";
+        }
+    }
+
+    /** Reads the dimensions of a plaintext GGUF, or returns null when its header is unusable. */
+    static Shape readShape(String modelPath) {
+        long[] v = nativeReadShape(modelPath);
+        if (v == null) return null;
+        Shape shape = new Shape();
+        shape.nLayer = v[0];
+        shape.nEmbd = v[1];
+        shape.nHead = v[2];
+        shape.nHeadKv = v[3];
+        shape.headDimK = v[4];
+        shape.headDimV = v[5];
+        shape.nFf = v[6];
+        shape.nVocab = v[7];
+        shape.nCtxTrain = v[8];
+        shape.weightBytes = v[9];
+        return shape;
+    }
+
+    /**
+     * Largest context that fits in budgetBytes, which must already exclude the weights. Contexts
+     * go down by halves; at each one f16 KV is tried before q8_0 (near lossless), and a large
+     * batch before a small one. q4_0 KV is only used when nothing else fits. Null when not even
+     * the smallest context fits. With kvType set only that type is considered.
+     */
+    static Plan plan(Shape shape, long budgetBytes, LlamaInference.KvCacheType kvType) {
+        if (kvType != null) return plan(shape, budgetBytes, new LlamaInference.KvCacheType[] {kvType});
+        Plan plan = plan(shape, budgetBytes, new LlamaInference.KvCacheType[] {
+                LlamaInference.KvCacheType.F16, LlamaInference.KvCacheType.Q8_0});
+        return plan != null ? plan : plan(shape, budgetBytes, new LlamaInference.KvCacheType[] {LlamaInference.KvCacheType.Q4_0});
+    }
+
+    private static Plan plan(Shape shape, long budgetBytes, LlamaInference.KvCacheType[] types) {
+        long usable = budgetBytes - RESERVE_BYTES;
+        int maxCtx = MAX_CTX;
+        if (shape.nCtxTrain > 0) {
+            while (maxCtx > shape.nCtxTrain && maxCtx > 512) maxCtx /= 2;
+        }
+        int minCtx = Math.min(MIN_CTX, maxCtx);
+
+        for (int nCtx = maxCtx; nCtx >= minCtx; nCtx /= 2) {
+            for (LlamaInference.KvCacheType type : types) {
+                for (int nBatch : BATCH_SIZES) {
+                    long bytes = kvBytes(shape, nCtx, type) + computeBytes(shape, nCtx, nBatch);
+                    if (bytes <= usable) {
+                        Plan plan = new Plan(nCtx, nBatch, type, bytes);
+                        Log.d(TAG, "Planned " + plan + " of " + (budgetBytes / 1024 / 1024) + "MB free");
+                        return plan;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Bytes the smallest plan needs on top of the weights, for error messages. */
+    static long minimumBytes(Shape shape) {
+        int minCtx = shape.nCtxTrain > 0 ? (int) Math.min(MIN_CTX, shape.nCtxTrain) : MIN_CTX;
+        int minBatch = BATCH_SIZES[BATCH_SIZES.length - 1];
+        return kvBytes(shape, minCtx, LlamaInference.KvCacheType.Q4_0) + computeBytes(shape, minCtx, minBatch) + RESERVE_BYTES;
+    }
+
+    // One unified cache of nCtx cells shared by all sequences
+    static long kvBytes(Shape shape, int nCtx, LlamaInference.KvCacheType type) {
+        long elements = (long) nCtx * shape.nLayer * shape.nHeadKv * (shape.headDimK + shape.headDimV);
+        switch (type) {
+            case Q8_0: return elements * 34 / 32;
+            case Q4_0: return elements * 18 / 32;
+            default: return elements * 2;
+        }
+    }
+
+    // The graph is reserved for a full batch of outputs, so logits of nBatch rows dominate on
+    // large vocabularies; activations and the f16 attention mask come on top
+    static long computeBytes(Shape shape, int nCtx, int nBatch) {
+        long ff = shape.nFf > 0 ? shape.nFf : 4 * shape.nEmbd;
+        long graph = (long) nBatch * 4 * (shape.nVocab + ff + 3 * shape.nEmbd);
+        long mask = (long) nCtx * nBatch * 2;
+        long outputs = (long) OUTPUT_ROWS * shape.nVocab * 4;
+        return graph + mask + outputs;
+    }
+
+    private static native long[] nativeReadShape(String modelPath);
+}
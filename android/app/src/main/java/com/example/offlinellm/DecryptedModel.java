@@ -0,0 +1,92 @@
+package com.example.offlinellm;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Plaintext weights of an encrypted model, held in an anonymous memfd so they never reach
+ * storage. llama.cpp opens them through /proc/self/fd/N and maps them like a regular file.
+ * Kernels without memfd_create fall back to a cache file that is deleted on close.
+ * Once a model is loaded its mapping keeps the memory alive, so closing early is safe.
+ */
+class DecryptedModel implements Closeable {
+    private static final String TAG = "DecryptedModel";
+
+    private final ParcelFileDescriptor memory;
+    private final File file;
+    private final long size;
+
+    private DecryptedModel(ParcelFileDescriptor memory, File file, long size) {
+        this.memory = memory;
+        this.file = file;
+        this.size = size;
+    }
+
+    static DecryptedModel decrypt(Context context, File encryptedFile) throws Exception {
+        // Plaintext copies left behind by the old decrypt-to-cache loader
+        File legacy = new File(context.getCacheDir(), "decrypted_" + encryptedFile.getName());
+        if (legacy.exists() && legacy.delete()) {
+            Log.d(TAG, "Removed plaintext cache " + legacy.getName());
+        }
+
+        int fd = nativeCreateMemfd(encryptedFile.getName());
+        if (fd < 0) {
+            Log.w(TAG, "memfd_create unavailable, decrypting " + encryptedFile.getName() + " to a temporary file");
+            SecurityHelper.decryptFile(context, encryptedFile, legacy);
+            if (legacy.length() == 0) {
+                legacy.delete();
+                throw new Exception("Failed to decrypt model file");
+            }
+            return new DecryptedModel(null, legacy, legacy.length());
+        }
+
+        ParcelFileDescriptor memory = ParcelFileDescriptor.adoptFd(fd);
+        try {
+            // Written through a duplicate so the stream can close it and keep `memory` open
+            try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(memory.dup())) {
+                SecurityHelper.decryptTo(context, encryptedFile, out);
+            }
+            long size = memory.getStatSize();
+            if (size <= 0) throw new Exception("Failed to decrypt model file");
+            Log.d(TAG, "Decrypted " + encryptedFile.getName() + " into memory (" + (size / 1024 / 1024) + "MB)");
+            return new DecryptedModel(memory, null, size);
+        } catch (Exception e) {
+            memory.close();
+            throw e;
+        }
+    }
+
+    /** Path llama.cpp can open; only valid until close(). */
+    String path() {
+        return memory != null ? "/proc/self/fd/" + memory.getFd() : file.getAbsolutePath();
+    }
+
+    long size() {
+        return size;
+    }
+
+    /** True when the plaintext sits in a memfd, whose pages already count as used RAM. */
+    boolean inMemory() {
+        return memory != null;
+    }
+
+    @Override
+    public void close() {
+        if (memory != null) {
+            try {
+                memory.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close model memory", e);
+            }
+        } else {
+            file.delete();
+        }
+    }
+
+    private static native int nativeCreateMemfd(String name);
+}
@@ -0,0 +1,59 @@
+package com.example.offlinellm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Per-request generation settings: how long an answer may get, how long it may take and how
+ * tokens are sampled. Deadlines count from the moment the request is submitted, 0 means none.
+ */
+public class GenerationConfig {
+    public enum BudgetPolicy {
+        // Cut the answer where the budget or deadline runs out
+        STOP,
+        // Near the end of the budget, finish at the next sentence break instead
+        SHORTEN
+    }
+
+    public int maxTokens = 2048;
+    public long deadlineMs = 0;
+    // Fails the request when no token arrives in time, so callers can fall back quickly
+    public long firstTokenDeadlineMs = 0;
+    public BudgetPolicy onBudget = BudgetPolicy.STOP;
+    // Hints that the answer will mostly copy the prompt (rewrite-style actions)
+    public boolean promptLookup = false;
+
+    public float temperature = 0.7f;
+    public int topK = 40;
+    public float topP = 0.95f;
+    public float minP = 0.05f;
+    public float repeatPenalty = 1.0f;
+    // Negative picks a random seed per request
+    public long seed = -1;
+
+    /** Defaults with the response length and temperature chosen in Settings. */
+    public static GenerationConfig fromSettings(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("app_settings", Context.MODE_PRIVATE);
+        GenerationConfig config = new GenerationConfig();
+        config.maxTokens = prefs.getInt("max_tokens", config.maxTokens);
+        config.temperature = prefs.getFloat("temperature", config.temperature);
+        return config;
+    }
+
+    // Order matches config_index in native-lib-v2.cpp
+    double[] toNative() {
+        return new double[] {
+                maxTokens,
+                deadlineMs,
+                firstTokenDeadlineMs,
+                onBudget == BudgetPolicy.SHORTEN ? 1 : 0,
+                promptLookup ? 1 : 0,
+                temperature,
+                topK,
+                topP,
+                minP,
+                repeatPenalty,
+                seed < 0 ? -1 : seed & 0xFFFFFFFFL
+        };
+    }
+}
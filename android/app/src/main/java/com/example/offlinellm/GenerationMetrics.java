@@ -0,0 +1,73 @@
+package com.example.offlinellm;
+
+import android.os.Build;
+import java.util.Locale;
+
+/**
+ * Performance numbers for one finished generation, measured natively. Kept on the answer's
+ * ChatMessage so regressions can be compared across devices and releases.
+ */
+public class GenerationMetrics {
+    public enum StopReason {
+        END_OF_TURN,
+        TOKEN_BUDGET,
+        DEADLINE,
+        // Ended early at a sentence break under GenerationConfig.BudgetPolicy.SHORTEN
+        SHORTENED
+    }
+
+    private double timeToFirstTokenMs;
+    private int prefillTokens;
+    private double prefillMs;
+    private int decodeTokens;
+    private double decodeMs;
+    private double samplingMs;
+    private int kvCells;
+    private long peakRssKb;
+    private StopReason stopReason;
+    private String device;
+
+    // Values arrive in the order of metric_index in native-lib-v2.cpp
+    static GenerationMetrics fromNative(double[] values) {
+        GenerationMetrics m = new GenerationMetrics();
+        m.timeToFirstTokenMs = values[0];
+        m.prefillTokens = (int) values[1];
+        m.prefillMs = values[2];
+        m.decodeTokens = (int) values[3];
+        m.decodeMs = values[4];
+        m.samplingMs = values[5];
+        m.kvCells = (int) values[6];
+        m.peakRssKb = (long) values[7];
+        int reason = (int) values[8];
+        m.stopReason = reason >= 0 && reason < StopReason.values().length ? StopReason.values()[reason] : StopReason.END_OF_TURN;
+        m.device = Build.MANUFACTURER + " " + Build.MODEL;
+        return m;
+    }
+
+    public double getTimeToFirstTokenMs() { return timeToFirstTokenMs; }
+    public int getPrefillTokens() { return prefillTokens; }
+    public double getPrefillMs() { return prefillMs; }
+    public int getDecodeTokens() { return decodeTokens; }
+    public double getDecodeMs() { return decodeMs; }
+    public double getSamplingMs() { return samplingMs; }
+    public int getKvCells() { return kvCells; }
+    public long getPeakRssKb() { return peakRssKb; }
+    public StopReason getStopReason() { return stopReason; }
+    public String getDevice() { return device; }
+
+    public double getPrefillTokensPerSecond() {
+        return prefillMs > 0 ? prefillTokens * 1000.0 / prefillMs : 0;
+    }
+
+    public double getDecodeTokensPerSecond() {
+        return decodeMs > 0 ? decodeTokens * 1000.0 / decodeMs : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "ttft %.0fms, prefill %d tok %.1f t/s, decode %d tok %.1f t/s, sampling %.0fms, kv %d, rss %dMB, %s",
+                timeToFirstTokenMs, prefillTokens, getPrefillTokensPerSecond(), decodeTokens,
+                getDecodeTokensPerSecond(), samplingMs, kvCells, peakRssKb / 1024, stopReason);
+    }
+}
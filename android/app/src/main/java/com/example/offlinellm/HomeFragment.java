@@ -22,6 +22,9 @@ import java.util.List;
 
 public class HomeFragment extends Fragment {
 
+    // Alternative answers sampled together when the user asks to regenerate
+    private static final int REGENERATE_CANDIDATES = 3;
+
     private RecyclerView recyclerView;
     private ChatAdapter adapter;
     private List<ChatMessage> messages;
@@ -32,6 +35,8 @@ public class HomeFragment extends Fragment {
     private ChatHistoryManager historyManager;
     private ChatSession currentSession;
     private boolean isGenerating = false;
+    // User message whose text is back in the input; sending replaces it and what followed
+    private ChatMessage editingMessage;
 
     @Nullable
     @Override
@@ -65,6 +70,7 @@ public class HomeFragment extends Fragment {
             public void onEdit(ChatMessage message) {
                 // Put the user message back in the input
                 if (message.getSender().equalsIgnoreCase("You")) {
+                    editingMessage = isGenerating ? null : message;
                     chatInput.setText(message.getText());
                     chatInput.setSelection(chatInput.getText().length());
                     chatInput.requestFocus();
@@ -95,7 +101,7 @@ public class HomeFragment extends Fragment {
                             adapter.notifyItemRemoved(msgIndex);
                             
                             MainActivity activity = (MainActivity) getActivity();
-                            activity.handleChatMessage(previousUserMsg.getText(), messages, adapter, recyclerView);
+                            activity.handleChatMessage(previousUserMsg.getText(), messages, adapter, recyclerView, true, REGENERATE_CANDIDATES);
                         }
                     }
                 }
@@ -104,15 +110,11 @@ public class HomeFragment extends Fragment {
             @Override
             public void onMakeLonger(ChatMessage message) {
                 if (getActivity() instanceof MainActivity && !isGenerating) {
-                    // Create prompt to make longer
-                    String prompt = "Please expand on your previous response and provide more detail: " + message.getText();
                     MainActivity activity = (MainActivity) getActivity();
-                    
-                    ChatMessage userMsg = new ChatMessage("You", "Make this longer");
-                    messages.add(userMsg);
-                    adapter.notifyItemInserted(messages.size() - 1);
-                    
-                    activity.handleChatMessage(prompt, messages, adapter, recyclerView);
+                    int msgIndex = messages.indexOf(message);
+                    // The answer grows in place instead of being pasted into a new question
+                    setGenerating(true);
+                    if (!activity.continueAnswer(message, adapter, recyclerView, msgIndex)) setGenerating(false);
                 }
             }
 
@@ -127,7 +129,20 @@ public class HomeFragment extends Fragment {
                     messages.add(userMsg);
                     adapter.notifyItemInserted(messages.size() - 1);
                     
-                    activity.handleChatMessage(prompt, messages, adapter, recyclerView);
+                    activity.handleChatMessage(prompt, messages, adapter, recyclerView, true);
+                }
+            }
+
+            @Override
+            public void onSelectCandidate(ChatMessage message, int index) {
+                if (isGenerating) return;
+                int msgIndex = messages.indexOf(message);
+                if (msgIndex < 0) return;
+                message.selectCandidate(index);
+                adapter.notifyItemChanged(msgIndex);
+                if (getActivity() instanceof MainActivity) {
+                    // Only the latest answer is what the model continues from
+                    ((MainActivity) getActivity()).onCandidateSelected(index, msgIndex == messages.size() - 1);
                 }
             }
         });
@@ -149,6 +164,7 @@ public class HomeFragment extends Fragment {
     public void loadActiveSession() {
         currentSession = historyManager.getActiveSession();
         if (currentSession != null) {
+            editingMessage = null;
             messages.clear();
             messages.addAll(currentSession.getMessages());
             adapter.notifyDataSetChanged();
@@ -171,7 +187,23 @@ public class HomeFragment extends Fragment {
     private void sendMessage() {
         String text = chatInput.getText().toString().trim();
         if (text.isEmpty()) return;
-        
+
+        int editedIndex = editingMessage != null ? messages.indexOf(editingMessage) : -1;
+        if (editedIndex >= 0 && getActivity() instanceof MainActivity) {
+            // Continue from the turn before the edited one; its KV is still cached. The turn is
+            // found by position, counted from the end, so an earlier question with the same text
+            // is left alone
+            int laterQuestions = 0;
+            for (int i = editedIndex + 1; i < messages.size(); i++) {
+                if (messages.get(i).getSender().equalsIgnoreCase("You")) laterQuestions++;
+            }
+            ((MainActivity) getActivity()).rewindConversation(laterQuestions, editingMessage.getText());
+            int removed = messages.size() - editedIndex;
+            messages.subList(editedIndex, messages.size()).clear();
+            adapter.notifyItemRangeRemoved(editedIndex, removed);
+        }
+        editingMessage = null;
+
         ChatMessage userMsg = new ChatMessage("You", text);
         messages.add(userMsg);
         adapter.notifyItemInserted(messages.size() - 1);
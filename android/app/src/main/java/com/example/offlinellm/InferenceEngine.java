@@ -8,16 +8,44 @@ public interface InferenceEngine {
         void onToken(String token);
         default void onThought(String thought) {}
         default void onStatus(String status) {}
+        // Older context was evicted so the conversation could continue past n_ctx
+        default void onContextShift(int droppedTokens) {}
+        // Alternative answer `index` (>= 1) of a multi-candidate regenerate; candidate 0 uses onToken
+        default void onCandidateToken(int index, String token) {}
+        // Performance numbers of the finished request, delivered just before onComplete
+        default void onMetrics(GenerationMetrics metrics) {}
         void onComplete();
         void onError(String message);
     }
 
     void loadModel(File modelFile) throws Exception;
     void generate(String prompt, Callback callback);
+    // Token budget, deadlines and sampling for this request; engines that cannot honour them ignore them
+    default void generate(String prompt, GenerationConfig config, Callback callback) { generate(prompt, callback); }
+    // One-off request (title, summary) that may run alongside the chat and never enters its history
+    default void generateBackground(String prompt, GenerationConfig config, Callback callback) { callback.onError("Background requests are not supported"); }
+    // Answers the last question again with several candidates; engines without batching produce one
+    default void regenerate(String prompt, int candidates, GenerationConfig config, Callback callback) { generate(prompt, config, callback); }
+    // Makes candidate `index` of the last regenerate the answer the conversation continues from
+    default void selectCandidate(int index) {}
+    // Makes an answer longer. True when the new text picks up where previousAnswer stopped and is
+    // appended to it; false when it is a longer rewrite that replaces it, which is all an engine
+    // without a cached conversation can do
+    default boolean continueAnswer(String previousAnswer, GenerationConfig config, Callback callback) {
+        generate("Rewrite this answer in a longer, more detailed version. Reply with the rewritten answer only.\n\n"
+                + previousAnswer, config, callback);
+        return false;
+    }
+    // Forgets the turn with laterTurns recorded turns after it, which must ask userMessage, and
+    // everything after it, so the next generate answers an edited version from that point;
+    // false when that turn is not in the history
+    default boolean rewindTo(int laterTurns, String userMessage) { return false; }
     void stop();
     void unload();
     boolean isLoaded();
     default void clearHistory() {}
+    default boolean saveSessionState(String sessionId) { return false; }
+    default boolean restoreSessionState(String sessionId) { return false; }
 
     static InferenceEngine getForFile(Context context, File file) {
         String name = file.getName().toLowerCase();
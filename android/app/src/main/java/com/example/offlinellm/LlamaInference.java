@@ -3,12 +3,27 @@ package com.example.offlinellm;
 import android.content.Context;
 import android.util.Log;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class LlamaInference implements InferenceEngine {
     private static final String TAG = "LlamaInference";
 
     private static boolean isLibraryLoaded = false;
 
+    // Character cap on replayed history. The native side shifts the context once the
+    // tokens outgrow n_ctx; this only bounds how much text is re-tokenized per turn.
+    private static final int MAX_HISTORY_CHARS = 64000;
+
+    // Direct buffer the native side writes token bytes into, split between a request's candidates
+    private static final int STREAM_BUFFER_BYTES = 16 * 1024;
+
+    // Free RAM left after the weights above which warm-up also locks them in memory
+    private static final long MLOCK_HEADROOM_MB = 2048;
+
     static {
         try {
             System.loadLibrary("llama-jni");
@@ -19,17 +34,77 @@ public class LlamaInference implements InferenceEngine {
         }
     }
 
+    /** Element type of the KV cache, for both K and V. Order matches the native side. */
+    public enum KvCacheType { F16, Q8_0, Q4_0 }
+
+    /**
+     * Scheduling priority of the compute threads. MEDIUM and HIGH ask for realtime scheduling,
+     * which Android only grants privileged processes; elsewhere the threads stay at NORMAL.
+     */
+    public enum ThreadPriority { LOW, NORMAL, MEDIUM, HIGH }
+
+    /** How token embeddings become one vector per text. Order matches the native side. */
+    public enum Pooling { MEAN, CLS, LAST }
+
+    /** A LoRA adapter loaded on top of the resident model. Scale 0 means loaded but not applied. */
+    public static final class LoraAdapter {
+        public final String fileName;
+        private final long handle;
+        private float scale = 0f;
+
+        private LoraAdapter(String fileName, long handle) {
+            this.fileName = fileName;
+            this.handle = handle;
+        }
+
+        public float getScale() {
+            return scale;
+        }
+    }
+
     private long contextPointer = 0;
-    private File tempDecryptedFile = null;
+    // Decrypted weights of the loaded model, kept open for warm-up until unload
+    private DecryptedModel weights = null;
     private Context context;
     private String modelFileName = "";
+    private KvCacheType kvCacheType = KvCacheType.F16;
+
+    // Compute threadpool settings, applied at load time and by setThreadPool
+    private ThreadPriority threadPriority = ThreadPriority.NORMAL;
+    private int threadPoll = 50;
+    private boolean strictCpu = false;
+
+    // Completed turns, already formatted with the chat template. Re-sending them verbatim
+    // lets the native side match the cached KV prefix and only decode the new turn.
+    private final List<String> historyTurns = new ArrayList<>();
+
+    private final SessionStateStore stateStore;
+    private final ThreadTuningStore threadTuning;
+
+    // Raw answers of the last multi-candidate regenerate and the user turn they answer
+    private final List<String> lastCandidates = new ArrayList<>();
+    private String lastCandidateTurn = null;
+
+    // Adapters loaded on the current model, freed with it
+    private final List<LoraAdapter> loraAdapters = new ArrayList<>();
 
     public LlamaInference(Context context) {
         this.context = context;
+        this.stateStore = new SessionStateStore(context);
+        this.threadTuning = new ThreadTuningStore(context);
     }
 
     @Override
     public void loadModel(File encryptedModelFile) throws Exception {
+        loadModel(encryptedModelFile, null);
+    }
+
+    /**
+     * Loads the model with the given KV cache type, or picks one when kvType is null. The context
+     * size and batch are planned from the model's dimensions and the RAM left after the weights,
+     * so a model either gets the largest context that fits or is refused before any allocation.
+     */
+    public void loadModel(File encryptedModelFile, KvCacheType kvType) throws Exception {
         if (encryptedModelFile != null) {
             this.modelFileName = encryptedModelFile.getName().toLowerCase();
         }
@@ -48,62 +123,258 @@ public class LlamaInference implements InferenceEngine {
             throw new Exception("Model file too small (" + (fileSize/1024) + "KB). Please re-download the model.");
         }
         
-        // RAM Preflight check
-        long requiredRam = (long) (fileSize * 1.5);
-        long availableRam = ModelManager.getInstance(context).getAvailableRamMb() * 1024L * 1024L;
-        
-        if (availableRam < requiredRam) {
-            throw new Exception("Insufficient RAM: Need ~" + (requiredRam/1024/1024) + "MB, Available: " + (availableRam/1024/1024) + "MB");
+        // RAM preflight: the weights alone must fit before they are decrypted into memory
+        ModelManager manager = ModelManager.getInstance(context);
+        long availableRam = manager.getAvailableRamMb() * 1024L * 1024L;
+        if (availableRam < fileSize) {
+            throw new Exception("Insufficient RAM: Need ~" + (fileSize/1024/1024) + "MB, Available: " + (availableRam/1024/1024) + "MB");
         }
 
-        // Decrypt to cached file if not already present
-        String cachedName = "decrypted_" + encryptedModelFile.getName();
-        tempDecryptedFile = new File(context.getCacheDir(), cachedName);
+        weights = DecryptedModel.decrypt(context, encryptedModelFile);
+
+        // Size the context from the model's dimensions and the RAM left now
+        int nCtx = 0;
+        int nBatch = 0;
+        ContextPlanner.Shape shape = ContextPlanner.readShape(weights.path());
+        if (shape != null) {
+            long budget = manager.getAvailableRamMb() * 1024L * 1024L;
+            // Page cache of a decrypted file still counts as available, its memfd pages do not
+            if (!weights.inMemory()) budget -= shape.weightBytes;
+            ContextPlanner.Plan plan = ContextPlanner.plan(shape, budget, kvType);
+            if (plan == null) {
+                long needed = shape.weightBytes + ContextPlanner.minimumBytes(shape);
+                closeWeights();
+                throw new Exception("Insufficient RAM: Need ~" + (needed/1024/1024) + "MB, Available: " + (availableRam/1024/1024) + "MB");
+            }
+            kvType = plan.kvType;
+            nCtx = plan.nCtx;
+            nBatch = plan.nBatch;
+        } else if (kvType == null) {
+            Log.w(TAG, "No model dimensions in " + modelFileName + ", using the default context");
+            kvType = manager.recommendKvCacheType(manager.getModelByFileName(encryptedModelFile.getName()), fileSize);
+        }
+        kvCacheType = kvType;
+        Log.d(TAG, "KV cache type: " + kvCacheType);
+
+        // Without saved thread counts the native side calibrates them against this model once
+        int[] threads = threadTuning.load(modelFileName);
+        contextPointer = nativeInit(weights.path(), kvCacheType.ordinal(), nCtx, nBatch, threads[0], threads[1]);
         
-        // Only decrypt if cached file doesn't exist or is older/wrong size
-        // Note: For real security we might want a better check, but for speed this is a massive win
-        if (!tempDecryptedFile.exists() || tempDecryptedFile.length() == 0) {
-            Log.d(TAG, "Decrypting model to cache: " + cachedName);
-            SecurityHelper.decryptFile(context, encryptedModelFile, tempDecryptedFile);
-        } else {
-            Log.d(TAG, "Using cached decrypted model: " + cachedName);
+        if (contextPointer == 0) {
+            closeWeights();
+            throw new Exception("Failed to initialize llama model");
+        }
+        // Native falls back to f16 KV, with a smaller context, when the quantized cache is
+        // unsupported; saved session states are keyed by the type actually in use
+        int[] actual = nativeGetContextParams(contextPointer);
+        KvCacheType actualType = KvCacheType.values()[actual[2]];
+        if (actualType != kvCacheType) {
+            Log.w(TAG, "KV cache fell back from " + kvCacheType + " to " + actualType + ", n_ctx " + nCtx + " -> " + actual[0]);
+            kvCacheType = actualType;
+        }
+        if (threads[0] <= 0 || threads[1] <= 0) {
+            int[] tuned = nativeGetThreadCounts(contextPointer);
+            threadTuning.save(modelFileName, tuned[0], tuned[1]);
+            Log.d(TAG, "Calibrated threads: " + tuned[0] + " decode, " + tuned[1] + " prefill");
+        }
+        if (!nativeSetThreadPool(contextPointer, threadPriority.ordinal(), threadPoll, strictCpu)) {
+            Log.w(TAG, "Threadpool unavailable, decoding starts its threads per call");
         }
 
-        // Validate decryption result
-        if (!tempDecryptedFile.exists() || tempDecryptedFile.length() == 0) {
-            throw new Exception("Failed to decrypt model file");
+        // Decode the fixed system header once; every new chat starts from this snapshot
+        if (!nativeSetSystemPrompt(contextPointer, systemHeader())) {
+            Log.w(TAG, "System prompt snapshot unavailable, it will be decoded per chat");
         }
+    }
 
-        String modelPath = tempDecryptedFile.getAbsolutePath();
-        if (modelPath == null || modelPath.isEmpty()) {
-            throw new Exception("Failed to get model file path");
+    /**
+     * Pages the weights in and runs a one-token dummy decode, so the first reply does not pay for
+     * cold page faults and first-use setup. Progress is reported through callback.onStatus, then
+     * onComplete. With plenty of free RAM the weights are also locked in memory.
+     * Blocks for as long as reading the model takes; call it from a background thread.
+     * Unloading cancels it.
+     */
+    public void warmUp(Callback callback) {
+        long ptr;
+        DecryptedModel model;
+        synchronized (lock) {
+            ptr = contextPointer;
+            model = weights;
+            if (ptr == 0 || model == null) {
+                callback.onError("Model not loaded");
+                return;
+            }
+            runningWarmups++;
         }
+        try {
+            long headroomMb = ModelManager.getInstance(context).getAvailableRamMb() - model.size() / (1024L * 1024L);
 
-        contextPointer = nativeInit(modelPath);
-        
-        // After loading into memory via mmap, we can technically delete the temp file 
-        // if mmap implementation in llama.cpp allows it (usually it does on Linux/Android after open)
-        // but for safety we cleanup on unload or app close as per requirement.
-        
-        if (contextPointer == 0) {
-            cleanupTempFile();
-            throw new Exception("Failed to initialize llama model");
+            // Nothing here holds the lock: paging in and mlock take as long as reading the model,
+            // and the one-token decode only waits for the context itself.
+            // Weights in a memfd are resident already unless swapped out, so this is quick.
+            if (!nativePageIn(ptr, model.path(), new StreamCallback(callback, null, false))) {
+                Log.w(TAG, "Could not page in " + modelFileName);
+            }
+            synchronized (lock) {
+                if (contextPointer != ptr) {
+                    callback.onError("Model was unloaded");
+                    return;
+                }
+            }
+            if (!nativeWarmup(ptr, model.path(), headroomMb >= MLOCK_HEADROOM_MB)) {
+                callback.onError("Warm-up decode failed");
+                return;
+            }
+        } finally {
+            synchronized (lock) {
+                runningWarmups--;
+                lock.notifyAll();
+            }
+        }
+        callback.onComplete();
+    }
+
+    /**
+     * Attaches a smaller model with the same tokenizer as a speculative draft.
+     * It proposes nDraft tokens per step and the loaded model verifies them in one batch.
+     */
+    public void attachDraftModel(File encryptedDraftFile, int nDraft) throws Exception {
+        if (encryptedDraftFile == null || !encryptedDraftFile.exists()) {
+            throw new Exception("Draft model file not found");
+        }
+        // The draft's mapping keeps its weights alive once attached, so they are closed right away
+        try (DecryptedModel draft = DecryptedModel.decrypt(context, encryptedDraftFile)) {
+            synchronized (lock) {
+                if (contextPointer == 0) throw new Exception("Model not loaded");
+                if (runningChats > 0) throw new Exception("Already busy");
+                if (!nativeAttachDraft(contextPointer, draft.path(), nDraft)) {
+                    throw new Exception("Draft model is not compatible with " + modelFileName);
+                }
+            }
+        }
+        Log.d(TAG, "Attached draft model " + encryptedDraftFile.getName());
+    }
+
+    public void detachDraftModel() {
+        synchronized (lock) {
+            if (contextPointer != 0 && runningChats == 0) {
+                nativeDetachDraft(contextPointer);
+            }
         }
     }
 
-    private void cleanupTempFile() {
-        if (tempDecryptedFile != null && tempDecryptedFile.exists()) {
-            tempDecryptedFile.delete();
-            tempDecryptedFile = null;
+    /** Share of drafted tokens the target accepted since the draft was attached, or -1 without a draft. */
+    public float getDraftAcceptanceRate() {
+        synchronized (lock) {
+            if (contextPointer == 0) return -1f;
+            long[] stats = nativeGetDraftStats(contextPointer);
+            return stats[0] > 0 ? (float) stats[1] / stats[0] : -1f;
         }
     }
 
+    /**
+     * Replaces the persistent compute threadpools (one for single-token steps, one for prompt
+     * chunks). poll (0-100) is how long idle threads spin for the next step before sleeping:
+     * higher trims per-token latency, lower saves power. strictCpu pins each thread to one core.
+     * Both pools are parked between requests.
+     */
+    public void setThreadPool(ThreadPriority priority, int poll, boolean strictCpu) {
+        synchronized (lock) {
+            this.threadPriority = priority != null ? priority : ThreadPriority.NORMAL;
+            this.threadPoll = Math.max(0, Math.min(poll, 100));
+            this.strictCpu = strictCpu;
+            if (contextPointer != 0 && !nativeSetThreadPool(contextPointer, threadPriority.ordinal(), threadPoll, strictCpu)) {
+                Log.w(TAG, "Failed to replace the threadpool");
+            }
+        }
+    }
+
+    /**
+     * Rebuilds only the llama context on the loaded weights with new size, batch, KV type or
+     * thread counts, which takes milliseconds instead of a full load. The cached conversation
+     * moves over when params.keepKv is set, the KV type stays and it fits; otherwise the next
+     * turn re-reads the history. Returns false while a request runs or when the new context
+     * cannot be created, in which case the previous one is kept.
+     */
+    public boolean reconfigure(ContextParams params) {
+        if (params == null) return false;
+        int result;
+        long lostPtr = 0;
+        DecryptedModel lostModel = null;
+        synchronized (lock) {
+            if (contextPointer == 0 || runningChats > 0) return false;
+            result = nativeReconfigure(contextPointer, params.contextSize, params.batchSize,
+                    params.kvCacheType != null ? params.kvCacheType.ordinal() : -1,
+                    params.decodeThreads, params.prefillThreads, params.keepKv);
+            if (result == RECONFIGURE_LOST) {
+                // Forgotten before the lock is released, so no request reaches the empty wrapper
+                lostPtr = contextPointer;
+                lostModel = weights;
+                forgetContext();
+            } else {
+                kvCacheType = KvCacheType.values()[nativeGetContextParams(contextPointer)[2]];
+                // The old pools were sized for the old thread counts
+                if (!nativeSetThreadPool(contextPointer, threadPriority.ordinal(), threadPoll, strictCpu)) {
+                    Log.w(TAG, "Threadpool unavailable after reconfigure");
+                }
+            }
+        }
+        if (result == RECONFIGURE_LOST) {
+            Log.e(TAG, "Context lost while reconfiguring to " + params + ", unloading");
+            freeContext(lostPtr, lostModel);
+            return false;
+        }
+        Log.d(TAG, "Reconfigured to " + getContextParams() + (result == RECONFIGURE_KEPT_KV ? ", KV kept" : ""));
+        return result == RECONFIGURE_KEPT_KV || result == RECONFIGURE_CLEARED_KV;
+    }
+
+    /** Settings of the current context, or null when no model is loaded. */
+    public ContextParams getContextParams() {
+        synchronized (lock) {
+            if (contextPointer == 0) return null;
+            int[] values = nativeGetContextParams(contextPointer);
+            ContextParams params = new ContextParams();
+            params.contextSize = values[0];
+            params.batchSize = values[1];
+            params.kvCacheType = KvCacheType.values()[values[2]];
+            params.decodeThreads = values[3];
+            params.prefillThreads = values[4];
+            return params;
+        }
+    }
+
+    private void closeWeights() {
+        if (weights != null) {
+            weights.close();
+            weights = null;
+        }
+    }
+
+    // Outcome of nativeReconfigure, in the order of reconfigure_result
+    private static final int RECONFIGURE_KEPT_KV = 0;
+    private static final int RECONFIGURE_CLEARED_KV = 1;
+    private static final int RECONFIGURE_FAILED = 2;
+    private static final int RECONFIGURE_LOST = 3;
+    // How long saving or clearing a session waits for a stopped chat to wind down
+    private static final long IDLE_WAIT_MS = 3000;
+
     private final Object lock = new Object();
-    private boolean isGenerating = false;
-    private volatile boolean stopRequested = false;
+    // Held for a whole embedding call; the native embedding context serves one call at a time
+    private final Object embedLock = new Object();
+    // The chat request still streaming its answer; null once it finished or was stopped
+    private StreamCallback activeChat = null;
+    // Chat requests the native worker has not finished yet, including stopped ones
+    private int runningChats = 0;
+    // Warm-ups using the context or the weights outside the lock; freeing waits for them
+    private int runningWarmups = 0;
 
     @Override
     public void generate(String prompt, Callback callback) {
+        generate(prompt, GenerationConfig.fromSettings(context), callback);
+    }
+
+    @Override
+    public void generate(String prompt, GenerationConfig config, Callback callback) {
         if (callback == null) {
             Log.e(TAG, "Callback is null");
             return;
@@ -116,123 +387,418 @@ public class LlamaInference implements InferenceEngine {
 
         // Apply best Chat Template based on model name
         String formattedPrompt = prompt;
-        if (!prompt.contains("<|im_start|>") && !prompt.contains("[INST]") && !prompt.contains("<|user|>") && !prompt.contains("<|start_header_id|>")) {
-            if (modelFileName.contains("llama-3")) {
-                // Official Llama 3.2 Instruct template
-                formattedPrompt = "<|begin_of_text|><|start_header_id|>system<|end_header_id|>\n\nYou are RAY AI, a helpful, professional AI assistant.<|eot_id|><|start_header_id|>user<|end_header_id|>\n\n" + prompt + "<|eot_id|><|start_header_id|>assistant<|end_header_id|>\n\n";
-            } else {
-                // Default to ChatML (Qwen, Phi-3, etc.)
-                formattedPrompt = "<|im_start|>system\nYou are RAY AI, a high-quality, helpful, and professional AI assistant created by ROT. Provide accurate, detailed, and perfectly formatted responses.<|im_end|>\n" +
-                                 "<|im_start|>user\n" + prompt + "<|im_end|>\n" +
-                                 "<|im_start|>assistant\n";
-            }
+        boolean isChatTurn = false;
+        if (!isTemplated(prompt)) {
+            isChatTurn = true;
+            formattedPrompt = buildConversationPrompt(prompt);
         }
         
-        final String finalPrompt = formattedPrompt;
-        
+        final String userTurn = isChatTurn ? formatUserTurn(prompt) : null;
+
+        long ptr;
+        StreamCallback cb;
         synchronized (lock) {
-            if (contextPointer == 0) {
+            ptr = contextPointer;
+            if (ptr == 0) {
                 callback.onError("Model not loaded");
                 return;
             }
-            if (isGenerating) {
+            if (activeChat != null) {
+                // The chat sequence is still answering. Running this next to it would leave the
+                // turn out of the history; side work goes through generateBackground instead
                 callback.onError("Already busy");
                 return;
             }
-            isGenerating = true;
-            stopRequested = false;
+            cb = startChat(callback, userTurn);
         }
 
-        new Thread(() -> {
-            try {
-                long currentPtr;
-                synchronized (lock) {
-                    currentPtr = contextPointer;
-                    if (currentPtr == 0) {
-                        isGenerating = false;
-                        callback.onError("Model not loaded");
-                        return;
-                    }
+        // Only queues the request; the native worker streams the answer into cb
+        nativeGenerate(ptr, formattedPrompt, cb.chat, config.toNative(), cb.stream, cb);
+    }
+
+    /**
+     * Answers the last question again with several candidates. The prompt is decoded once and
+     * its KV is shared by all candidates, which are then sampled together in one batch per token.
+     * Candidate 0 streams through onToken and becomes the recorded answer until another is selected.
+     */
+    @Override
+    public void regenerate(String prompt, int candidates, GenerationConfig config, Callback callback) {
+        if (callback == null) return;
+        if (prompt == null || prompt.trim().isEmpty() || isTemplated(prompt) || candidates <= 1) {
+            generate(prompt, config, callback);
+            return;
+        }
+        final String userTurn = formatUserTurn(prompt);
+
+        long ptr;
+        StreamCallback cb;
+        synchronized (lock) {
+            ptr = contextPointer;
+            if (ptr == 0) {
+                callback.onError("Model not loaded");
+                return;
+            }
+            if (activeChat != null) {
+                callback.onError("Already busy");
+                return;
+            }
+            // The answer being replaced is the last turn; drop it so the prompt ends at the question.
+            // It comes back unless the new candidates complete
+            int last = historyTurns.size() - 1;
+            String replaced = last >= 0 && historyTurns.get(last).startsWith(userTurn) ? historyTurns.remove(last) : null;
+            cb = startChat(callback, userTurn);
+            cb.replacedTurn = replaced;
+        }
+
+        nativeGenerateCandidates(ptr, buildConversationPrompt(prompt), candidates, config.toNative(), cb.stream, cb);
+    }
+
+    @Override
+    public void selectCandidate(int index) {
+        synchronized (lock) {
+            if (runningChats > 0 || lastCandidateTurn == null || index < 0 || index >= lastCandidates.size()) return;
+            int last = historyTurns.size() - 1;
+            if (last < 0 || !historyTurns.get(last).startsWith(lastCandidateTurn)) return;
+            // The KV still holds candidate 0; the next turn re-decodes from where they differ
+            historyTurns.set(last, lastCandidateTurn + lastCandidates.get(index) + endOfTurn());
+        }
+    }
+
+    /**
+     * Extends the last answer by re-opening its assistant turn: the prompt ends with the answer
+     * instead of its end-of-turn token, so the model keeps writing from where it stopped and the
+     * cached KV is reused up to there. Only possible while the last recorded turn is that answer;
+     * otherwise (older answer, new or restored chat) it is rewritten as a new turn.
+     */
+    @Override
+    public boolean continueAnswer(String previousAnswer, GenerationConfig config, Callback callback) {
+        if (callback == null || previousAnswer == null) return false;
+        long ptr;
+        String prompt = null;
+        StreamCallback cb = null;
+        synchronized (lock) {
+            ptr = contextPointer;
+            int last = historyTurns.size() - 1;
+            String turn = last >= 0 ? historyTurns.get(last) : null;
+            if (ptr != 0 && activeChat == null && turn != null && turn.endsWith(endOfTurn())
+                    && previousAnswer.trim().equals(visibleAnswer(turn))) {
+                // Recorded again with the continuation once it completes, or as it was otherwise
+                String openTurn = turn.substring(0, turn.length() - endOfTurn().length());
+                historyTurns.remove(last);
+                prompt = buildPromptEndingWith(openTurn);
+                cb = startChat(callback, openTurn);
+                cb.replacedTurn = turn;
+            }
+        }
+        if (cb == null) return InferenceEngine.super.continueAnswer(previousAnswer, config, callback);
+        nativeGenerate(ptr, prompt, true, config.toNative(), cb.stream, cb);
+        return true;
+    }
+
+    // The answer of a recorded turn as the chat showed it, without its <thought> sections
+    private String visibleAnswer(String turn) {
+        int start = turn.lastIndexOf(assistantHeader());
+        if (start < 0) return null;
+        String answer = turn.substring(start + assistantHeader().length(), turn.length() - endOfTurn().length());
+        return answer.replaceAll("(?s)<thought>.*?(</thought>|$)", "").trim();
+    }
+
+    /**
+     * Drops the turn laterTurns from the end and all turns after it. Counting from the end stays
+     * right after old turns were trimmed from the front or the context was shifted; the turn must
+     * still ask userMessage, so a question that was never recorded (a stopped answer) cannot move
+     * the cut to another turn. The turns before it still match the start of the KV cache, so the
+     * next prompt only decodes from the edited message on; the stale tail is removed from the KV
+     * when that prompt is admitted.
+     */
+    @Override
+    public boolean rewindTo(int laterTurns, String userMessage) {
+        if (userMessage == null || laterTurns < 0) return false;
+        String userTurn = formatUserTurn(userMessage);
+        synchronized (lock) {
+            if (contextPointer == 0 || runningChats > 0) return false;
+            int i = historyTurns.size() - 1 - laterTurns;
+            if (i < 0 || !historyTurns.get(i).startsWith(userTurn)) return false;
+            Log.d(TAG, "Rewound to turn " + i + " of " + historyTurns.size());
+            historyTurns.subList(i, historyTurns.size()).clear();
+            lastCandidates.clear();
+            lastCandidateTurn = null;
+            return true;
+        }
+    }
+
+    // Called under lock
+    private StreamCallback startChat(Callback callback, String userTurn) {
+        activeChat = new StreamCallback(callback, userTurn, true);
+        runningChats++;
+        return activeChat;
+    }
+
+    /**
+     * Runs a one-off request (chat title, summary) in its own sequence while the chat keeps going.
+     * Both are decoded in the same batches, so neither waits for the other to finish.
+     */
+    @Override
+    public void generateBackground(String prompt, GenerationConfig config, Callback callback) {
+        if (callback == null) return;
+        if (prompt == null || prompt.trim().isEmpty()) {
+            callback.onError("Prompt cannot be empty");
+            return;
+        }
+        String formattedPrompt = isTemplated(prompt) ? prompt : systemHeader() + formatUserTurn(prompt);
+        long ptr;
+        synchronized (lock) {
+            ptr = contextPointer;
+        }
+        if (ptr == 0) {
+            callback.onError("Model not loaded");
+            return;
+        }
+        StreamCallback cb = new StreamCallback(callback, null, false);
+        nativeGenerate(ptr, formattedPrompt, false, config.toNative(), cb.stream, cb);
+    }
+
+    private static boolean isTemplated(String prompt) {
+        return prompt.contains("<|im_start|>") || prompt.contains("[INST]") || prompt.contains("<|user|>") || prompt.contains("<|start_header_id|>");
+    }
+
+    // Forwards native output to the caller, splitting <thought> sections; the chat request
+    // also records its finished turn so the next prompt reuses the cached KV.
+    // All methods run on the native worker thread.
+    private class StreamCallback implements NativeCallback {
+        private final Callback callback;
+        private final String userTurn;
+        final boolean chat;
+        private volatile boolean stopped = false;
+        // Turn taken out of the history for this request to redo; put back as it was unless the
+        // request completes. Guarded by lock
+        String replacedTurn = null;
+        private boolean turnRestored = false;
+        private boolean inThought = false;
+        private StringBuilder currentThought = new StringBuilder();
+        private StringBuilder rawAnswer = new StringBuilder();
+        private final List<StringBuilder> candidateAnswers = new ArrayList<>();
+        private final Set<Integer> candidatesInThought = new HashSet<>();
+        // Written by the native side; view is the worker thread's window onto it
+        final ByteBuffer stream = ByteBuffer.allocateDirect(STREAM_BUFFER_BYTES);
+        private final ByteBuffer view = stream.duplicate();
+        private final List<Utf8StreamDecoder> decoders = new ArrayList<>();
+
+        StreamCallback(Callback callback, String userTurn, boolean chat) {
+            this.callback = callback;
+            this.userTurn = userTurn;
+            this.chat = chat;
+        }
+
+        @Override
+        public void onBytes(int candidate, int offset, int length) {
+            view.clear();
+            view.position(offset);
+            view.limit(offset + length);
+            while (decoders.size() <= candidate) decoders.add(new Utf8StreamDecoder());
+            String text = decoders.get(candidate).decode(view);
+            if (text.isEmpty()) return;
+            if (candidate == 0) {
+                onText(text);
+            } else {
+                onCandidateText(candidate, text);
+            }
+        }
+
+        private void onText(String text) {
+            rawAnswer.append(text);
+            if (stopped) return;
+
+            inThought = splitThoughts(text, inThought, (part, thought) -> {
+                if (thought) {
+                    callback.onThought(part);
+                    currentThought.append(part);
+                } else {
+                    callback.onToken(part);
                 }
-                
-                nativeGenerate(currentPtr, finalPrompt, new NativeCallback() {
-                    private boolean inThought = false;
-                    private StringBuilder currentThought = new StringBuilder();
-
-                    @Override
-                    public void onToken(String token) {
-                        if (stopRequested || token == null || token.isEmpty()) return;
-
-                        if (token.contains("<thought>")) {
-                            inThought = true;
-                            String after = token.substring(token.indexOf("<thought>") + 9);
-                            if (!after.isEmpty()) {
-                                callback.onThought(after);
-                                currentThought.append(after);
-                            }
-                            return;
-                        }
-
-                        if (token.contains("</thought>")) {
-                            inThought = false;
-                            String before = token.substring(0, token.indexOf("</thought>"));
-                            if (!before.isEmpty()) {
-                                callback.onThought(before);
-                                currentThought.append(before);
-                            }
-                            return;
-                        }
-
-                        if (inThought) {
-                            callback.onThought(token);
-                            currentThought.append(token);
-                        } else {
-                            callback.onToken(token);
-                        }
-                    }
+            });
+        }
 
-                    @Override
-                    public void onStatus(String status) {
-                        callback.onStatus(status);
-                    }
+        private void onCandidateText(int index, String text) {
+            while (candidateAnswers.size() <= index) candidateAnswers.add(new StringBuilder());
+            candidateAnswers.get(index).append(text);
+            if (stopped) return;
 
-                    @Override
-                    public void onComplete() {
-                        synchronized (lock) {
-                            isGenerating = false;
-                        }
-                        if (!stopRequested) {
-                            callback.onComplete();
-                        }
-                    }
+            boolean ended = splitThoughts(text, candidatesInThought.contains(index), (part, thought) -> {
+                if (!thought) callback.onCandidateToken(index, part);
+            });
+            if (ended) {
+                candidatesInThought.add(index);
+            } else {
+                candidatesInThought.remove(index);
+            }
+        }
+
+        @Override
+        public void onStatus(String status) {
+            callback.onStatus(status);
+        }
 
-                    @Override
-                    public void onError(String message) {
-                        synchronized (lock) {
-                            isGenerating = false;
-                        }
-                        callback.onError(message);
+        @Override
+        public void onContextShift(int droppedTokens) {
+            Log.d(TAG, "Context shifted, dropped " + droppedTokens + " tokens");
+            callback.onContextShift(droppedTokens);
+        }
+
+        @Override
+        public void onMetrics(double[] values) {
+            GenerationMetrics metrics = GenerationMetrics.fromNative(values);
+            Log.d(TAG, "Metrics: " + metrics);
+            if (!stopped) {
+                callback.onMetrics(metrics);
+            }
+        }
+
+        // Called under lock
+        void restoreReplacedTurn() {
+            if (replacedTurn == null) return;
+            historyTurns.add(replacedTurn);
+            turnRestored = true;
+            replacedTurn = null;
+        }
+
+        @Override
+        public void onComplete() {
+            if (chat) {
+                synchronized (lock) {
+                    if (activeChat == this) activeChat = null;
+                    // Stopped just as it completed: the new answer takes the place of the old one
+                    if (turnRestored) {
+                        historyTurns.remove(historyTurns.size() - 1);
+                        turnRestored = false;
                     }
-                });
-            } catch (Exception e) {
-                Log.e(TAG, "Generation failed", e);
-                callback.onError(e.getMessage() != null ? e.getMessage() : "Generation failed");
+                    replacedTurn = null;
+                    if (userTurn != null) {
+                        historyTurns.add(userTurn + rawAnswer + endOfTurn());
+                    }
+                    lastCandidates.clear();
+                    lastCandidateTurn = null;
+                    if (userTurn != null && !candidateAnswers.isEmpty()) {
+                        lastCandidates.add(rawAnswer.toString());
+                        for (int i = 1; i < candidateAnswers.size(); i++) lastCandidates.add(candidateAnswers.get(i).toString());
+                        lastCandidateTurn = userTurn;
+                    }
+                }
+            }
+            if (!stopped) {
+                callback.onComplete();
+            }
+        }
+
+        @Override
+        public void onError(String message) {
+            if (chat) {
                 synchronized (lock) {
-                    isGenerating = false;
+                    if (activeChat == this) activeChat = null;
+                    restoreReplacedTurn();
                 }
-            } finally {
+            }
+            callback.onError(message);
+        }
+
+        @Override
+        public void onFinished() {
+            if (chat) {
                 synchronized (lock) {
-                    isGenerating = false;
-                    stopRequested = false;
+                    if (activeChat == this) activeChat = null;
+                    // Neither completed nor failed, e.g. stopped before stop() could restore it
+                    restoreReplacedTurn();
+                    runningChats--;
+                    lock.notifyAll();
                 }
             }
-        }).start();
+        }
+    }
+
+    private interface ThoughtSink {
+        void accept(String part, boolean thought);
+    }
+
+    // Hands the parts of a chunk inside and outside <thought> sections to sink; a chunk may open
+    // and close a section several times. Returns whether the chunk ends inside a section
+    private static boolean splitThoughts(String text, boolean inThought, ThoughtSink sink) {
+        while (!text.isEmpty()) {
+            String tag = inThought ? "</thought>" : "<thought>";
+            int at = text.indexOf(tag);
+            String part = at < 0 ? text : text.substring(0, at);
+            if (!part.isEmpty()) sink.accept(part, inThought);
+            if (at < 0) break;
+            inThought = !inThought;
+            text = text.substring(at + tag.length());
+        }
+        return inThought;
+    }
+
+    private boolean isLlama3() {
+        return modelFileName.contains("llama-3") || modelFileName.contains("llama3");
+    }
+
+    private String systemHeader() {
+        if (isLlama3()) {
+            // Official Llama 3.2 Instruct template
+            return "<|begin_of_text|><|start_header_id|>system<|end_header_id|>\n\nYou are RAY AI, a helpful, professional AI assistant.<|eot_id|>";
+        }
+        // Default to ChatML (Qwen, Phi-3, etc.)
+        return "<|im_start|>system\nYou are RAY AI, a high-quality, helpful, and professional AI assistant created by ROT. Provide accurate, detailed, and perfectly formatted responses.<|im_end|>\n";
+    }
+
+    private String formatUserTurn(String prompt) {
+        if (isLlama3()) {
+            return "<|start_header_id|>user<|end_header_id|>\n\n" + prompt + "<|eot_id|>" + assistantHeader();
+        }
+        return "<|im_start|>user\n" + prompt + "<|im_end|>\n" + assistantHeader();
+    }
+
+    private String assistantHeader() {
+        return isLlama3() ? "<|start_header_id|>assistant<|end_header_id|>\n\n" : "<|im_start|>assistant\n";
+    }
+
+    private String endOfTurn() {
+        return isLlama3() ? "<|eot_id|>" : "<|im_end|>\n";
+    }
+
+    private String buildConversationPrompt(String prompt) {
+        return buildPromptEndingWith(formatUserTurn(prompt));
+    }
+
+    private String buildPromptEndingWith(String lastTurn) {
+        StringBuilder sb = new StringBuilder(systemHeader());
+        synchronized (lock) {
+            // Drop the oldest turns once the replayed history gets too long for the context
+            int total = 0;
+            for (String turn : historyTurns) total += turn.length();
+            while (!historyTurns.isEmpty() && total + lastTurn.length() > MAX_HISTORY_CHARS) {
+                total -= historyTurns.remove(0).length();
+            }
+            for (String turn : historyTurns) sb.append(turn);
+        }
+        sb.append(lastTurn);
+        return sb.toString();
+    }
+
+    /** Number of most recent tokens kept when the context fills up and older ones are evicted. */
+    public void setContextShiftKeep(int recentTokens) {
+        synchronized (lock) {
+            if (contextPointer != 0) nativeSetContextShift(contextPointer, recentTokens);
+        }
     }
 
     @Override
     public void stop() {
         synchronized (lock) {
-            stopRequested = true;
+            // The stopped request may still finish its current step natively; a new chat queues
+            // behind it there, while one sent during an unstopped answer is refused as busy
+            if (activeChat != null) {
+                activeChat.stopped = true;
+                // Back before the next prompt is built from the history, not when the native side finishes
+                activeChat.restoreReplacedTurn();
+                activeChat = null;
+            }
             if (contextPointer != 0) {
                 nativeStop(contextPointer);
             }
@@ -241,43 +807,291 @@ public class LlamaInference implements InferenceEngine {
 
     @Override
     public void unload() {
+        long ptr;
+        DecryptedModel model;
         synchronized (lock) {
-            stopRequested = true;
-            if (contextPointer != 0) {
-                nativeStop(contextPointer); // Ensure it stops first
-                nativeFree(contextPointer);
-                contextPointer = 0;
+            ptr = contextPointer;
+            model = weights;
+            forgetContext();
+        }
+        freeContext(ptr, model);
+    }
+
+    // Called under lock; afterwards no new request can reach the native context
+    private void forgetContext() {
+        if (activeChat != null) {
+            activeChat.stopped = true;
+            activeChat.replacedTurn = null;
+            activeChat = null;
+        }
+        contextPointer = 0;
+        weights = null;
+        historyTurns.clear();
+        lastCandidates.clear();
+        // nativeFree releases their weights
+        loraAdapters.clear();
+    }
+
+    private void freeContext(long ptr, DecryptedModel model) {
+        if (ptr != 0) {
+            // A running warm-up stops at its next chunk; the context and weights stay until it has
+            nativeCancelWarmup(ptr);
+            awaitWarmups();
+            // Outside the lock: freeing joins the worker, whose last callbacks may need it
+            nativeStop(ptr);
+            synchronized (embedLock) {
+                nativeFree(ptr);
+            }
+        }
+        // The plaintext only ever lived in memory; this releases it
+        if (model != null) model.close();
+    }
+
+    // Not interruptible: freeing under a running warm-up would crash; once cancelled it ends soon
+    private void awaitWarmups() {
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (runningWarmups > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /** Mean-pooled, L2-normalized embeddings of texts, for similarity search. */
+    public float[][] embed(List<String> texts) throws Exception {
+        return embed(texts, Pooling.MEAN, true);
+    }
+
+    /**
+     * Embeds texts with the loaded model in a context of its own, so the chat KV is untouched and
+     * generation keeps running. Short texts are packed together into few decodes. Blocks; call
+     * it off the main thread.
+     */
+    public float[][] embed(List<String> texts, Pooling pooling, boolean normalize) throws Exception {
+        if (texts == null || texts.isEmpty()) return new float[0][];
+        synchronized (embedLock) {
+            long ptr;
+            synchronized (lock) {
+                ptr = contextPointer;
             }
-            isGenerating = false;
+            if (ptr == 0) throw new Exception("Model not loaded");
+            float[][] result = nativeEmbed(ptr, texts.toArray(new String[0]), pooling.ordinal(), normalize);
+            if (result == null) throw new Exception("Failed to compute embeddings");
+            return result;
         }
-        // We keep the decrypted cache for faster subsequent loads
     }
 
+    /**
+     * Loads an encrypted LoRA adapter next to the resident model without applying it. Adapters
+     * are small, so this takes well under a second; the base weights stay mapped as they are.
+     */
+    public LoraAdapter loadLoraAdapter(File encryptedFile) throws Exception {
+        try (DecryptedModel adapter = DecryptedModel.decrypt(context, encryptedFile)) {
+            synchronized (lock) {
+                if (contextPointer == 0) throw new Exception("Model not loaded");
+                // The adapter is read into its own buffers, so the plaintext can go right after
+                long handle = nativeLoadLora(contextPointer, adapter.path());
+                if (handle == 0) throw new Exception("Adapter does not fit " + modelFileName);
+                LoraAdapter loaded = new LoraAdapter(encryptedFile.getName(), handle);
+                loraAdapters.add(loaded);
+                Log.d(TAG, "Loaded LoRA adapter " + loaded.fileName);
+                return loaded;
+            }
+        }
+    }
+
+    /**
+     * Applies an adapter with the given scale, or detaches it with 0. The cached conversation was
+     * computed with the old weights and is dropped; the system prompt is decoded again and the
+     * next turn re-reads the history. Returns false while a request is running.
+     */
+    public boolean setLoraScale(LoraAdapter adapter, float scale) {
+        synchronized (lock) {
+            if (contextPointer == 0 || runningChats > 0 || !loraAdapters.contains(adapter)) return false;
+            if (adapter.scale == scale) return true;
+            if (!nativeSetLora(contextPointer, adapter.handle, scale)) return false;
+            adapter.scale = scale;
+            lastCandidates.clear();
+            return true;
+        }
+    }
+
+    /** Detaches the adapter if applied and frees its weights. */
+    public boolean unloadLoraAdapter(LoraAdapter adapter) {
+        synchronized (lock) {
+            if (contextPointer == 0 || !loraAdapters.contains(adapter)) return false;
+            if (adapter.scale != 0f && !setLoraScale(adapter, 0f)) return false;
+            nativeFreeLora(contextPointer, adapter.handle);
+            loraAdapters.remove(adapter);
+            return true;
+        }
+    }
+
+    public List<LoraAdapter> getLoraAdapters() {
+        synchronized (lock) {
+            return new ArrayList<>(loraAdapters);
+        }
+    }
+
+    /** Forgets the conversation. Waits briefly for a stopped chat to finish and refuses while one still runs. */
     @Override
     public void clearHistory() {
         synchronized (lock) {
+            // Clearing the KV under a running slot would corrupt its cache, and it would record
+            // its turn into the next conversation
+            if (!awaitIdle(IDLE_WAIT_MS)) {
+                Log.w(TAG, "Not clearing history while a chat is still running");
+                return;
+            }
+            historyTurns.clear();
+            lastCandidates.clear();
             if (contextPointer != 0) {
                 nativeClearKV(contextPointer);
             }
         }
     }
 
+    // Called under lock. A stopped request ends within a decode step, so waiting for it beats
+    // skipping the save or the clear that follows it
+    private boolean awaitIdle(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (runningChats > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            try {
+                lock.wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Saved KV only loads back into a cache of the same element type and the same adapters
+    private String stateKey() {
+        StringBuilder key = new StringBuilder(modelFileName + "_" + kvCacheType.name().toLowerCase());
+        synchronized (lock) {
+            for (LoraAdapter adapter : loraAdapters) {
+                if (adapter.scale != 0f) key.append("_").append(adapter.fileName).append("@").append(adapter.scale);
+            }
+        }
+        return key.toString();
+    }
+
+    public KvCacheType getKvCacheType() {
+        return kvCacheType;
+    }
+
+    @Override
+    public boolean saveSessionState(String sessionId) {
+        if (sessionId == null) return false;
+        File target = stateStore.stateFile(sessionId, stateKey());
+        synchronized (lock) {
+            if (!awaitIdle(IDLE_WAIT_MS)) {
+                Log.w(TAG, "Session " + sessionId + " not saved: a chat is still running");
+                return false;
+            }
+            if (contextPointer == 0 || historyTurns.isEmpty()) return false;
+
+            // Write next to the target and rename so a crash never leaves a torn state file
+            File tmp = new File(target.getPath() + ".tmp");
+            if (!nativeSaveState(contextPointer, tmp.getAbsolutePath()) || !tmp.renameTo(target)) {
+                tmp.delete();
+                return false;
+            }
+            try {
+                stateStore.writeTurns(sessionId, stateKey(), historyTurns);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to save turns for " + sessionId, e);
+                stateStore.remove(sessionId, stateKey());
+                return false;
+            }
+        }
+        stateStore.trimToBudget(target);
+        Log.d(TAG, "Saved KV state for session " + sessionId + " (" + (target.length() / 1024) + "KB)");
+        return true;
+    }
+
+    @Override
+    public boolean restoreSessionState(String sessionId) {
+        if (sessionId == null) return false;
+        File stateFile = stateStore.stateFile(sessionId, stateKey());
+        if (!stateFile.exists()) return false;
+
+        List<String> turns = stateStore.readTurns(sessionId, stateKey());
+        if (turns == null) return false;
+
+        synchronized (lock) {
+            if (contextPointer == 0 || runningChats > 0) return false;
+            if (!nativeLoadState(contextPointer, stateFile.getAbsolutePath())) {
+                stateStore.remove(sessionId, stateKey());
+                return false;
+            }
+            historyTurns.clear();
+            lastCandidates.clear();
+            historyTurns.addAll(turns);
+        }
+        stateStore.touch(sessionId, stateKey());
+        Log.d(TAG, "Restored KV state for session " + sessionId);
+        return true;
+    }
+
     @Override
     public boolean isLoaded() {
         return contextPointer != 0;
     }
 
-    // JNI Methods
-    private native long nativeInit(String modelPath);
-    private native void nativeGenerate(long ptr, String prompt, NativeCallback cb);
+    /** File name of the loaded model, lower-cased. */
+    public String getModelFileName() {
+        return modelFileName;
+    }
+
+    // JNI Methods. nativeGenerate and nativeGenerateCandidates only queue the request for the
+    // model's native worker thread and return at once.
+    // nCtx and nBatch come from ContextPlanner; 0 picks the defaults
+    private native long nativeInit(String modelPath, int kvType, int nCtx, int nBatch, int nThreads, int nThreadsBatch);
+    private native int[] nativeGetThreadCounts(long ptr);
+    private native boolean nativeSetThreadPool(long ptr, int priority, int poll, boolean strictCpu);
+    // kvType -1 and sizes or thread counts of 0 keep the current value
+    private native int nativeReconfigure(long ptr, int nCtx, int nBatch, int kvType, int nThreads, int nThreadsBatch, boolean keepKv);
+    private native int[] nativeGetContextParams(long ptr);
+    private native boolean nativePageIn(long ptr, String modelPath, NativeCallback cb);
+    private native boolean nativeWarmup(long ptr, String modelPath, boolean lockMemory);
+    // config is GenerationConfig.toNative()
+    private native void nativeGenerate(long ptr, String prompt, boolean chat, double[] config, ByteBuffer stream, NativeCallback cb);
+    private native void nativeGenerateCandidates(long ptr, String prompt, int nCandidates, double[] config, ByteBuffer stream, NativeCallback cb);
+    private native boolean nativeSetSystemPrompt(long ptr, String prompt);
     private native void nativeClearKV(long ptr);
+    private native boolean nativeSaveState(long ptr, String path);
+    private native boolean nativeLoadState(long ptr, String path);
+    private native boolean nativeAttachDraft(long ptr, String modelPath, int nDraft);
+    private native void nativeDetachDraft(long ptr);
+    private native long[] nativeGetDraftStats(long ptr);
+    private native void nativeSetContextShift(long ptr, int nKeepRecent);
+    private native float[][] nativeEmbed(long ptr, String[] texts, int pooling, boolean normalize);
+    private native long nativeLoadLora(long ptr, String path);
+    private native boolean nativeSetLora(long ptr, long handle, float scale);
+    private native void nativeFreeLora(long ptr, long handle);
     private native void nativeStop(long ptr);
+    private native void nativeCancelWarmup(long ptr);
     private native void nativeFree(long ptr);
 
     public interface NativeCallback {
-        void onToken(String token);
+        // Bytes [offset, offset + length) of the stream buffer hold new UTF-8 output of a candidate
+        void onBytes(int candidate, int offset, int length);
         void onStatus(String status);
+        void onContextShift(int droppedTokens);
+        // Values in GenerationMetrics.fromNative order, right before onComplete
+        void onMetrics(double[] values);
         void onComplete();
         void onError(String message);
+        // Last call for a request, after onComplete or onError, or alone once it was stopped
+        void onFinished();
     }
 }
@@ -27,9 +27,15 @@ import com.google.android.material.navigation.NavigationView;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity implements ModelManager.DownloadProgressListener {
     private InferenceEngine engine;
+    // Warm-ups run one at a time after the model is already usable
+    private final ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor();
+    // Chat session saves and clears, and message submission, in the order they were asked for
+    private final ExecutorService sessionExecutor = Executors.newSingleThreadExecutor();
     private ModelManager modelManager;
     private ChatHistoryManager historyManager;
     private boolean isGenerating = false;
@@ -130,9 +136,18 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
     }
 
     private void createNewChat() {
+        ChatSession previous = historyManager.getActiveSession();
+        // An answer still streaming belongs to the old chat
+        stopGeneration();
         historyManager.createNewSession();
-        if (engine != null) {
-            engine.clearHistory();
+        InferenceEngine current = engine;
+        if (current != null) {
+            // Persist the outgoing chat's KV before wiping it so reopening it skips prefill.
+            // Queued ahead of the new chat's first message, which goes through the same executor
+            sessionExecutor.execute(() -> {
+                if (previous != null) current.saveSessionState(previous.getId());
+                current.clearHistory();
+            });
         }
         // Refresh home fragment data
         if (homeFragment != null) {
@@ -143,6 +158,18 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
     }
 
     public boolean handleChatMessage(String prompt, List<ChatMessage> messages, ChatAdapter adapter, RecyclerView recyclerView) {
+        return handleChatMessage(prompt, messages, adapter, recyclerView, false);
+    }
+
+    public boolean handleChatMessage(String prompt, List<ChatMessage> messages, ChatAdapter adapter, RecyclerView recyclerView, boolean promptLookup) {
+        return handleChatMessage(prompt, messages, adapter, recyclerView, promptLookup, 1);
+    }
+
+    /**
+     * promptLookup enables draft-free speculative decoding for answers that copy the prompt.
+     * With candidates > 1 the last question is answered again several ways in one batched pass.
+     */
+    public boolean handleChatMessage(String prompt, List<ChatMessage> messages, ChatAdapter adapter, RecyclerView recyclerView, boolean promptLookup, int candidates) {
         if (prompt == null || prompt.trim().isEmpty()) {
             showSnack("Please enter a message");
             return false;
@@ -157,7 +184,8 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
 
         isGenerating = true;
 
-        new Thread(() -> {
+        // Behind any save or clear of the previous chat, so this prompt never meets its history
+        sessionExecutor.execute(() -> {
             // Check if engine needs loading
             if (engine == null || !engine.isLoaded()) {
                 ModelManager.ModelInfo bestModel = modelManager.getBestDownloadedModel(ModelManager.Tier.ULTRA_LIGHT);
@@ -223,6 +251,21 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
                 }
             }
 
+            @Override
+            public void onContextShift(int droppedTokens) {
+                runOnUiThread(() -> showSnack("Long chat: oldest messages moved out of context"));
+            }
+
+            @Override
+            public void onCandidateToken(int index, String token) {
+                runOnUiThread(() -> responseMessage.appendCandidate(index, token));
+            }
+
+            @Override
+            public void onMetrics(GenerationMetrics metrics) {
+                runOnUiThread(() -> responseMessage.setMetrics(metrics));
+            }
+
             @Override
             public void onComplete() {
                 runOnUiThread(() -> {
@@ -233,6 +276,7 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
                         session.addMessage(new ChatMessage("You", prompt));
                         session.addMessage(responseMessage);
                         historyManager.updateSession(session);
+                        if (session.getMessageCount() == 2) requestChatTitle(session, prompt);
                     }
                     isGenerating = false;
                     
@@ -262,8 +306,14 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
             }
         };
 
+        GenerationConfig config = GenerationConfig.fromSettings(this);
+        config.promptLookup = promptLookup;
         try {
-            engine.generate(prompt, currentGenerationCallback);
+            if (candidates > 1) {
+                engine.regenerate(prompt, candidates, config, currentGenerationCallback);
+            } else {
+                engine.generate(prompt, config, currentGenerationCallback);
+            }
         } catch (Exception e) {
             isGenerating = false;
             showSnack("Generation failed: " + e.getMessage());
@@ -271,11 +321,83 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
             adapter.notifyItemRemoved(responseIndex);
             return;
         }
-    }).start();
+    });
     return true;
 }
 
+    /**
+     * Makes an answer longer in place. The engine either keeps writing where the answer stopped,
+     * and the new text is appended, or writes a longer version that replaces the message text.
+     */
+    public boolean continueAnswer(ChatMessage answer, ChatAdapter adapter, RecyclerView recyclerView, int answerIndex) {
+        if (engine == null || !engine.isLoaded() || isGenerating) return false;
+        String previous = answer.getText();
+        answer.startGeneration();
+        isGenerating = true;
+        // Set right after the engine call; tokens are posted to this thread, so they only run after it
+        final boolean[] appends = {true};
+
+        currentGenerationCallback = new InferenceEngine.Callback() {
+            private boolean isFirstToken = true;
+
+            @Override
+            public void onToken(String token) {
+                if (token == null) return;
+                runOnUiThread(() -> {
+                    String base = appends[0] || !isFirstToken ? answer.getText() : "";
+                    answer.setText(base + token);
+                    isFirstToken = false;
+                    adapter.notifyItemChanged(answerIndex);
+                    recyclerView.scrollToPosition(answerIndex);
+                });
+            }
+
+            @Override
+            public void onMetrics(GenerationMetrics metrics) {
+                runOnUiThread(() -> answer.setMetrics(metrics));
+            }
+
+            @Override
+            public void onComplete() {
+                runOnUiThread(() -> {
+                    answer.finishGeneration();
+                    adapter.notifyItemChanged(answerIndex);
+                    ChatSession session = historyManager.getActiveSession();
+                    if (session != null) historyManager.updateSession(session);
+                    finishContinue();
+                });
+            }
+
+            @Override
+            public void onError(String message) {
+                runOnUiThread(() -> {
+                    showSnack("Error: " + (message != null ? message : "Unknown error"));
+                    // A half-written rewrite is worse than the answer it was replacing
+                    if (!appends[0]) answer.setText(previous);
+                    answer.finishGeneration();
+                    adapter.notifyItemChanged(answerIndex);
+                    finishContinue();
+                });
+            }
+        };
+
+        appends[0] = engine.continueAnswer(previous, GenerationConfig.fromSettings(this), currentGenerationCallback);
+        return true;
+    }
+
+    private void finishContinue() {
+        isGenerating = false;
+        Fragment fragment = getSupportFragmentManager().findFragmentById(R.id.fragment_container);
+        if (fragment instanceof HomeFragment) {
+            ((HomeFragment) fragment).onGenerationComplete();
+        }
+    }
+
     public void loadModel(ModelManager.ModelInfo model) {
+        if (model.adapterFor != null) {
+            applyAdapter(model);
+            return;
+        }
         new Thread(() -> {
             try {
                 File modelFile = new File(getFilesDir(), model.fileName);
@@ -285,7 +407,14 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
                 // Only swap engine after successful load
                 if (engine != null) engine.unload();
                 engine = newEngine;
-                
+
+                ChatSession active = historyManager.getActiveSession();
+                if (active != null && !active.getMessages().isEmpty()) {
+                    newEngine.restoreSessionState(active.getId());
+                }
+
+                attachDraftIfAvailable(newEngine, model);
+
                 currentModelName = model.name;
                 runOnUiThread(() -> {
                     if (modelNameText != null) {
@@ -293,6 +422,8 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
                     }
                     showSnack(model.name + " ready");
                 });
+                // The model is usable already; a message sent meanwhile just meets colder pages
+                warmUpIfEnabled(newEngine, model);
             } catch (Exception e) {
                 // Keep existing engine if possible, otherwise fallback
                 if (engine == null || !engine.isLoaded()) {
@@ -313,6 +444,151 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
         }).start();
     }
 
+    /** Forgets an edited user message and what followed it, in the saved chat and in the engine. */
+    /**
+     * Cuts the chat at the question that has laterQuestions user messages after it. userText
+     * only confirms the position; if the saved chat or the engine disagree, they are left as is.
+     */
+    public void rewindConversation(int laterQuestions, String userText) {
+        ChatSession session = historyManager.getActiveSession();
+        if (session != null) {
+            List<ChatMessage> saved = session.getMessages();
+            int remaining = laterQuestions;
+            for (int i = saved.size() - 1; i >= 0; i--) {
+                ChatMessage m = saved.get(i);
+                if (!m.getSender().equalsIgnoreCase("You")) continue;
+                if (remaining-- > 0) continue;
+                if (userText.equals(m.getText())) {
+                    session.setMessages(new ArrayList<>(saved.subList(0, i)));
+                    historyManager.updateSession(session);
+                }
+                break;
+            }
+        }
+        if (engine != null && !isGenerating && !engine.rewindTo(laterQuestions, userText)) {
+            Log.d("MainActivity", "Edited message is not in the engine history; answering it as a new turn");
+        }
+    }
+
+    public void onCandidateSelected(int index, boolean isLatest) {
+        if (isLatest && engine != null && !isGenerating) engine.selectCandidate(index);
+        ChatSession session = historyManager.getActiveSession();
+        if (session != null) historyManager.updateSession(session);
+    }
+
+    // Names a new chat after its first question. Runs as a background request in its own
+    // sequence, so a follow-up message can start right away instead of waiting for it.
+    private void requestChatTitle(ChatSession session, String firstPrompt) {
+        if (engine == null || !engine.isLoaded()) return;
+        final String autoTitle = session.getTitle();
+        String question = firstPrompt.length() > 500 ? firstPrompt.substring(0, 500) : firstPrompt;
+        StringBuilder title = new StringBuilder();
+        // A title is only worth having while the user is still looking at the new chat
+        GenerationConfig config = GenerationConfig.fromSettings(this);
+        config.maxTokens = 24;
+        config.deadlineMs = 20000;
+        config.firstTokenDeadlineMs = 10000;
+        engine.generateBackground("Write a title of at most six words for a chat that starts with this message. Reply with the title only.\n\n" + question,
+                config, new InferenceEngine.Callback() {
+                    @Override
+                    public void onToken(String token) {
+                        if (token != null) title.append(token);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        String result = title.toString().trim().replaceAll("^[\"']+|[\"'.]+$", "");
+                        if (result.isEmpty() || result.length() > 60 || result.contains("\n")) return;
+                        runOnUiThread(() -> {
+                            // Keep a name the user picked in the meantime
+                            if (!autoTitle.equals(session.getTitle())) return;
+                            session.setTitle(result);
+                            historyManager.updateSession(session);
+                        });
+                    }
+
+                    @Override
+                    public void onError(String message) {
+                        Log.d("MainActivity", "Chat title not generated: " + message);
+                    }
+                });
+    }
+
+    // Pages the weights in before the first message so it does not stall on cold page faults
+    private void warmUpIfEnabled(InferenceEngine target, ModelManager.ModelInfo model) {
+        if (!(target instanceof LlamaInference)) return;
+        if (!getSharedPreferences("app_settings", MODE_PRIVATE).getBoolean("warm_up_model", true)) return;
+        warmUpExecutor.execute(() -> ((LlamaInference) target).warmUp(new InferenceEngine.Callback() {
+            @Override
+            public void onToken(String token) {}
+
+            @Override
+            public void onStatus(String status) {
+                showModelStatus(target, model.name + " (" + status + ")");
+            }
+
+            @Override
+            public void onComplete() {
+                Log.d("MainActivity", "Warm-up finished for " + model.name);
+                showModelStatus(target, model.name);
+            }
+
+            @Override
+            public void onError(String message) {
+                Log.w("MainActivity", "Warm-up skipped: " + message);
+                showModelStatus(target, model.name);
+            }
+        }));
+    }
+
+    // Progress of a warm-up that belongs to a model since replaced is dropped
+    private void showModelStatus(InferenceEngine owner, String text) {
+        runOnUiThread(() -> {
+            if (engine == owner && modelNameText != null) modelNameText.setText("Model: " + text);
+        });
+    }
+
+    private void attachDraftIfAvailable(InferenceEngine target, ModelManager.ModelInfo model) {
+        if (!(target instanceof LlamaInference)) return;
+        ModelManager.ModelInfo draft = modelManager.getDraftModelFor(model);
+        if (draft == null || !modelManager.canLoadModel(draft)) return;
+        try {
+            ((LlamaInference) target).attachDraftModel(new File(getFilesDir(), draft.fileName), 6);
+            Log.d("MainActivity", "Speculative decoding with draft " + draft.name);
+        } catch (Exception e) {
+            Log.w("MainActivity", "Draft model not attached: " + e.getMessage());
+        }
+    }
+
+    // Swaps the LoRA adapter on the resident model; its base has to be the one loaded
+    private void applyAdapter(ModelManager.ModelInfo adapter) {
+        new Thread(() -> {
+            String message;
+            // An adapter only fits the base model it was trained on
+            if (!(engine instanceof LlamaInference) || !engine.isLoaded()
+                    || !((LlamaInference) engine).getModelFileName().equalsIgnoreCase(adapter.adapterFor)) {
+                message = "Load " + adapter.adapterFor.replace(".gguf.enc", "") + " first";
+            } else {
+                LlamaInference llama = (LlamaInference) engine;
+                try {
+                    for (LlamaInference.LoraAdapter loaded : llama.getLoraAdapters()) {
+                        if (!llama.unloadLoraAdapter(loaded)) throw new Exception("Busy, try again when the answer is done");
+                    }
+                    LlamaInference.LoraAdapter loaded = llama.loadLoraAdapter(new File(getFilesDir(), adapter.fileName));
+                    if (!llama.setLoraScale(loaded, 1.0f)) {
+                        llama.unloadLoraAdapter(loaded);
+                        throw new Exception("Busy, try again when the answer is done");
+                    }
+                    message = adapter.name + " applied";
+                } catch (Exception e) {
+                    message = "Adapter failed: " + e.getMessage();
+                }
+            }
+            String finalMessage = message;
+            runOnUiThread(() -> showSnack(finalMessage));
+        }).start();
+    }
+
     private void scanAndLoadBestModel() {
         new Thread(() -> {
             modelManager.scanForExistingModels();
@@ -321,6 +597,24 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
         }).start();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Running low while in use: halve the context in place rather than risk being killed
+        if (level != TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_RUNNING_CRITICAL) return;
+        if (!(engine instanceof LlamaInference) || isGenerating) return;
+        LlamaInference llama = (LlamaInference) engine;
+        new Thread(() -> {
+            ContextParams current = llama.getContextParams();
+            if (current == null || current.contextSize <= 1024) return;
+            ContextParams smaller = new ContextParams();
+            smaller.contextSize = current.contextSize / 2;
+            if (llama.reconfigure(smaller)) {
+                Log.d("MainActivity", "Context reduced to " + smaller.contextSize + " tokens under memory pressure");
+            }
+        }).start();
+    }
+
     public void stopGeneration() {
         if (isGenerating && engine != null) {
             engine.stop();
@@ -369,10 +663,22 @@ public class MainActivity extends AppCompatActivity implements ModelManager.Down
         super.onResume();
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        InferenceEngine current = engine;
+        ChatSession active = historyManager.getActiveSession();
+        if (current != null && active != null && !isGenerating) {
+            sessionExecutor.execute(() -> current.saveSessionState(active.getId()));
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         if (engine != null) engine.unload();
+        warmUpExecutor.shutdown();
+        sessionExecutor.shutdown();
         modelManager.removeProgressListener(this);
     }
 }
\ No newline at end of file
@@ -7,10 +7,12 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.TextView;
+import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.chip.Chip;
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import java.util.List;
 import java.text.DecimalFormat;
 
@@ -119,6 +121,7 @@ public class ModelAdapter extends RecyclerView.Adapter<ModelAdapter.ViewHolder>
         // Check for partial download
         java.io.File tempFile = new java.io.File(holder.itemView.getContext().getCacheDir(), model.fileName + ".tmp");
         boolean hasPartial = tempFile.exists() && tempFile.length() > 0;
+        holder.itemView.setOnLongClickListener(null);
 
         if (model.isDownloaded) {
             holder.btnDownload.setVisibility(View.GONE);
@@ -135,6 +138,12 @@ public class ModelAdapter extends RecyclerView.Adapter<ModelAdapter.ViewHolder>
                 model.isDownloaded = false;
                 notifyItemChanged(position);
             });
+            if (model.derivedFrom == null && model.adapterFor == null) {
+                holder.itemView.setOnLongClickListener(v -> {
+                    showModelActions(v, model);
+                    return true;
+                });
+            }
         } else if (model.isDownloading) {
             holder.btnDownload.setVisibility(View.GONE);
             holder.btnUse.setVisibility(View.GONE);
@@ -193,6 +202,82 @@ public class ModelAdapter extends RecyclerView.Adapter<ModelAdapter.ViewHolder>
         }
     }
 
+    private void showModelActions(View anchor, ModelManager.ModelInfo model) {
+        new MaterialAlertDialogBuilder(anchor.getContext())
+                .setTitle(model.name)
+                .setItems(new String[] {"Make a smaller copy", "Add LoRA adapter"}, (dialog, which) -> {
+                    if (which == 0) {
+                        showRequantizeDialog(anchor, model);
+                    } else {
+                        showAdapterImportDialog(anchor, model);
+                    }
+                })
+                .show();
+    }
+
+    // Downloads a LoRA adapter GGUF trained on this model; once downloaded, "Use" applies it
+    // on top of the loaded base without reloading the weights
+    private void showAdapterImportDialog(View anchor, ModelManager.ModelInfo base) {
+        android.widget.EditText input = new android.widget.EditText(anchor.getContext());
+        input.setHint("https://huggingface.co/.../resolve/main/adapter.gguf");
+        input.setPadding(40, 40, 40, 40);
+
+        new MaterialAlertDialogBuilder(anchor.getContext())
+                .setTitle("LoRA adapter for " + base.name)
+                .setMessage("Enter the direct GGUF download URL of an adapter trained on this model:")
+                .setView(input)
+                .setPositiveButton("Download", (dialog, which) -> {
+                    String url = input.getText().toString().trim();
+                    if (url.isEmpty()) return;
+                    String fileName = url.substring(url.lastIndexOf('/') + 1);
+                    if (!fileName.endsWith(".gguf")) fileName += ".gguf";
+
+                    ModelManager.ModelInfo adapterInfo = manager.registerAdapter("LoRA: " + fileName, url,
+                            fileName + ".enc", "PLACEHOLDER", base, 0);
+                    if (adapterInfo == null) {
+                        Toast.makeText(anchor.getContext(), fileName + " is already a model in the list", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    int pos = findPosition(adapterInfo);
+                    if (pos == -1) {
+                        pos = Math.min(findPosition(base) + 1, models.size());
+                        models.add(pos, adapterInfo);
+                        notifyItemInserted(pos);
+                    }
+                    manager.downloadModel(adapterInfo);
+                    notifyItemChanged(pos);
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    // Offers smaller quantizations of a downloaded model, made on the device in the background
+    private void showRequantizeDialog(View anchor, ModelManager.ModelInfo source) {
+        ModelManager.Quantization[] types = ModelManager.Quantization.values();
+        String[] labels = new String[types.length];
+        for (int i = 0; i < types.length; i++) labels[i] = types[i].label;
+
+        new MaterialAlertDialogBuilder(anchor.getContext())
+                .setTitle("Make a smaller copy of " + source.name)
+                .setItems(labels, (dialog, which) -> {
+                    ModelManager.ModelInfo derived = manager.requantizeModel(source, types[which]);
+                    if (derived == null) {
+                        Toast.makeText(anchor.getContext(), labels[which] + " would not be smaller", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    int pos = findPosition(derived);
+                    if (pos == -1) {
+                        pos = Math.min(findPosition(source) + 1, models.size());
+                        models.add(pos, derived);
+                        notifyItemInserted(pos);
+                    } else {
+                        notifyItemChanged(pos);
+                    }
+                    Toast.makeText(anchor.getContext(), "Quantizing in the background", Toast.LENGTH_SHORT).show();
+                })
+                .show();
+    }
+
     @Override
     public int getItemCount() {
         return models.size();
@@ -2,6 +2,7 @@ package com.example.offlinellm;
 
 import android.app.DownloadManager;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
@@ -11,17 +12,25 @@ import androidx.work.Data;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.WorkManager;
+import com.google.gson.Gson;
 import java.io.File;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ModelManager {
     private static final String TAG = "ModelManager";
+    // Models created on the device by re-quantizing a download, keyed by file name
+    private static final String DERIVED_PREFS = "derived_models";
+    // Smaller files are not models (404 pages etc); low-rank adapters are much smaller
+    private static final long MIN_MODEL_BYTES = 20 * 1024 * 1024;
+    private static final long MIN_ADAPTER_BYTES = 256 * 1024;
     private static ModelManager instance;
     private final Context context;
     private final List<ModelInfo> availableModels;
@@ -52,6 +61,30 @@ public class ModelManager {
         }
     }
 
+    /**
+     * Target types of an on-device re-quantization; none of them needs an importance matrix.
+     * Order matches the native side. bitsPerWeight is llama.cpp's average for the type.
+     */
+    public enum Quantization {
+        Q4_K_M("Q4_K_M", 4.89),
+        Q4_0("Q4_0", 4.55),
+        Q3_K_M("Q3_K_M", 3.91),
+        IQ4_XS("IQ4_XS", 4.25),
+        IQ4_NL("IQ4_NL", 4.5);
+
+        public final String label;
+        public final double bitsPerWeight;
+
+        Quantization(String label, double bitsPerWeight) {
+            this.label = label;
+            this.bitsPerWeight = bitsPerWeight;
+        }
+    }
+
+    // Average bits per weight of common GGUF types, by the tag in the model name
+    private static final String[] QUANT_TAGS = {"Q8_0", "Q6_K", "Q5_K_M", "Q5_K_S", "Q5_0", "Q4_K_M", "Q4_K_S", "Q4_0", "IQ4_NL", "IQ4_XS", "Q3_K_M", "F16"};
+    private static final double[] QUANT_BITS = {8.5, 6.56, 5.69, 5.54, 5.54, 4.89, 4.58, 4.55, 4.5, 4.25, 3.91, 16};
+
     public static class ModelInfo {
         public String usage;
         public String name;
@@ -66,6 +99,11 @@ public class ModelManager {
         public int downloadProgress;
         public long downloadedBytes;
         public long totalBytes;
+        // Set on models re-quantized on the device: the source file and the target type
+        public String derivedFrom;
+        public Quantization quantization;
+        // Set on LoRA adapters: the base model they were trained for. Not loadable on their own
+        public String adapterFor;
 
         public ModelInfo(String name, String url, String fileName, String expectedSha256, Tier tier, long estimatedRamBytes) {
             this(name, url, fileName, expectedSha256, tier, estimatedRamBytes, "Text Generation");
@@ -99,6 +137,15 @@ public class ModelManager {
         }
     }
 
+    // Catalog models that share a tokenizer with a larger target and can draft for it
+    // (speculative decoding). First entry is the target, the rest are drafts in preference order.
+    private static final String[][] DRAFT_PAIRS = {
+            {"qwen2_5_1_5b_q4km.gguf.enc", "qwen2_5_0_5b_q4km.gguf.enc", "qwen2_5_0_5b_q5km.gguf.enc"},
+            {"qwen2_5_3b_q4km.gguf.enc", "qwen2_5_0_5b_q4km.gguf.enc", "qwen2_5_0_5b_q5km.gguf.enc"},
+            {"qwen2_5_coder_3b_q4km.gguf.enc", "qwen2_5_0_5b_q4km.gguf.enc", "qwen2_5_0_5b_q5km.gguf.enc"},
+            {"llama3_2_3b_q4km.gguf.enc", "llama3_2_1b_q4km.gguf.enc"},
+    };
+
     private ModelManager(Context context) {
         this.context = context.getApplicationContext();
         this.availableModels = new CopyOnWriteArrayList<>();
@@ -249,6 +296,7 @@ public class ModelManager {
                 "Coding"
         ));
 
+        loadDerivedModels();
         updateStatus();
     }
 
@@ -283,6 +331,7 @@ public class ModelManager {
         updateStatus();
         List<ModelInfo> mobileModels = new ArrayList<>();
         for (ModelInfo model : availableModels) {
+            if (model.adapterFor != null) continue;
             if (model.tier == Tier.LIGHT || model.tier == Tier.ULTRA_LIGHT) {
                 mobileModels.add(model);
             }
@@ -324,15 +373,19 @@ public class ModelManager {
 
     public boolean isModelAvailableOnDevice(String fileName) {
         if (fileName == null) return false;
+        ModelInfo info = getModelByFileName(fileName);
         File file = new File(context.getFilesDir(), fileName);
-        return file.exists() && file.length() > 20 * 1024 * 1024;
+        return file.exists() && file.length() > minBytes(info);
+    }
+
+    private static long minBytes(ModelInfo info) {
+        return info != null && info.adapterFor != null ? MIN_ADAPTER_BYTES : MIN_MODEL_BYTES;
     }
 
     public void updateStatus() {
         for (ModelInfo info : availableModels) {
             File file = new File(context.getFilesDir(), info.fileName);
-            // Require > 20MB to be considered a valid model (filters out 404 pages etc)
-            info.isDownloaded = file.exists() && file.length() > 20 * 1024 * 1024;
+            info.isDownloaded = file.exists() && file.length() > minBytes(info);
             
             // RESET download status if file exists
             if (info.isDownloaded && (info.isDownloading || info.downloadProgress < 100)) {
@@ -402,6 +455,8 @@ public class ModelManager {
             Log.d(TAG, "Download already in progress for: " + info.name);
             return info.downloadId;
         }
+        // Nothing to fetch: a derived model is made again from its source
+        if (info.derivedFrom != null) return enqueueQuantize(info);
 
         Data input = new Data.Builder()
                 .putString("name", info.name)
@@ -429,6 +484,109 @@ public class ModelManager {
         return info.downloadId;
     }
 
+    static double bitsPerWeight(String modelName) {
+        String upper = modelName.toUpperCase(Locale.ROOT);
+        for (int i = 0; i < QUANT_TAGS.length; i++) {
+            if (upper.contains(QUANT_TAGS[i])) return QUANT_BITS[i];
+        }
+        return 0;
+    }
+
+    /**
+     * Starts a background job converting a downloaded model to a smaller quantization and
+     * registers the result as a new model, which reports progress like a download. Returns
+     * null when the source is not on the device or the type would not make it smaller.
+     * Quantizing an already quantized model loses a little more quality than downloading
+     * that type directly.
+     */
+    public ModelInfo requantizeModel(ModelInfo source, Quantization type) {
+        if (source == null || source.derivedFrom != null || source.adapterFor != null
+                || !isModelAvailableOnDevice(source.fileName)) return null;
+        double sourceBits = bitsPerWeight(source.name);
+        if (sourceBits > 0 && sourceBits <= type.bitsPerWeight) return null;
+
+        String fileName = source.fileName.replace(".gguf.enc", "") + "_" + type.label.toLowerCase(Locale.ROOT).replace("_", "") + ".gguf.enc";
+        ModelInfo info = getModelByFileName(fileName);
+        if (info == null) {
+            String baseName = source.name.replaceAll("\\s*(Q\\d_K_[SML]|Q\\d_K|Q\\d_0|IQ\\d_\\w+|F16)$", "");
+            double ratio = sourceBits > 0 ? type.bitsPerWeight / sourceBits : 1;
+            info = new ModelInfo(baseName + " " + type.label + " (on-device)", "", fileName, "PLACEHOLDER",
+                    source.tier, (long) (source.estimatedRamBytes * ratio), source.usage);
+            info.derivedFrom = source.fileName;
+            info.quantization = type;
+            availableModels.add(info);
+            saveDerivedModel(info);
+        }
+        if (!info.isDownloaded && !info.isDownloading) enqueueQuantize(info);
+        return info;
+    }
+
+    private long enqueueQuantize(ModelInfo info) {
+        Data input = new Data.Builder()
+                .putString("sourceFileName", info.derivedFrom)
+                .putString("fileName", info.fileName)
+                .putString("quantization", info.quantization.name())
+                .build();
+
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(ModelQuantizeWorker.class)
+                .setInputData(input)
+                .build();
+
+        info.downloadId = workRequest.getId().getMostSignificantBits();
+        info.isDownloading = true;
+        info.downloadProgress = 0;
+        info.downloadedBytes = 0;
+        info.totalBytes = 0;
+        notifyDownloadStarted(info);
+
+        // Same unique name as a download, so pausing or stopping it from the list cancels the job
+        WorkManager.getInstance(context)
+                .enqueueUniqueWork("model-download-" + info.fileName, ExistingWorkPolicy.REPLACE, workRequest);
+
+        Log.d(TAG, "Enqueued quantization of " + info.derivedFrom + " to " + info.quantization.label);
+        return info.downloadId;
+    }
+
+    /**
+     * Adds a LoRA adapter GGUF for a base model to the list. It downloads like a model and is
+     * applied on top of the base at runtime; the adapter must come from the same base weights.
+     */
+    public ModelInfo registerAdapter(String name, String url, String fileName, String expectedSha256, ModelInfo base, long sizeBytes) {
+        if (base == null || base.adapterFor != null) return null;
+        ModelInfo info = getModelByFileName(fileName);
+        if (info != null) return info.adapterFor != null ? info : null;
+        info = new ModelInfo(name, url, fileName, expectedSha256, base.tier, sizeBytes, "LoRA Adapter");
+        info.adapterFor = base.fileName;
+        availableModels.add(info);
+        saveDerivedModel(info);
+        updateStatus();
+        return info;
+    }
+
+    // Models that are not in the built-in list: re-quantized ones and adapters
+    private void saveDerivedModel(ModelInfo info) {
+        context.getSharedPreferences(DERIVED_PREFS, Context.MODE_PRIVATE)
+                .edit()
+                .putString(info.fileName, new Gson().toJson(info))
+                .apply();
+    }
+
+    private void loadDerivedModels() {
+        SharedPreferences prefs = context.getSharedPreferences(DERIVED_PREFS, Context.MODE_PRIVATE);
+        Gson gson = new Gson();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            try {
+                ModelInfo info = gson.fromJson((String) entry.getValue(), ModelInfo.class);
+                if (info == null || getModelByFileName(info.fileName) != null) continue;
+                resetDownloadStatus(info);
+                availableModels.add(info);
+            } catch (Exception e) {
+                Log.w(TAG, "Dropping unreadable model entry " + entry.getKey(), e);
+                prefs.edit().remove(entry.getKey()).apply();
+            }
+        }
+    }
+
     // Worker-driven progress callbacks
     public void onWorkerProgress(String fileName, int progress, long downloadedBytes, long totalBytes) {
         ModelInfo info = getModelByFileName(fileName);
@@ -538,7 +696,7 @@ public class ModelManager {
         for (int i = preference.ordinal(); i < tiers.length; i++) {
             Tier currentTier = tiers[i];
             for (ModelInfo info : availableModels) {
-                if (info.tier == currentTier && info.isDownloaded) {
+                if (info.tier == currentTier && info.isDownloaded && info.adapterFor == null) {
                     return info;
                 }
             }
@@ -546,6 +704,19 @@ public class ModelManager {
         return null;
     }
 
+    /** Returns a downloaded draft model for speculative decoding with the target, or null. */
+    public ModelInfo getDraftModelFor(ModelInfo target) {
+        if (target == null) return null;
+        for (String[] pair : DRAFT_PAIRS) {
+            if (!pair[0].equals(target.fileName)) continue;
+            for (int i = 1; i < pair.length; i++) {
+                ModelInfo draft = getModelByFileName(pair[i]);
+                if (draft != null && isModelAvailableOnDevice(draft.fileName)) return draft;
+            }
+        }
+        return null;
+    }
+
     public long getAvailableRamMb() {
         android.app.ActivityManager.MemoryInfo mi = new android.app.ActivityManager.MemoryInfo();
         android.app.ActivityManager activityManager = (android.app.ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
@@ -553,6 +724,18 @@ public class ModelManager {
         return mi.availMem / (1024L * 1024L);
     }
 
+    /**
+     * KV cache type for a model given the RAM left once its weights are mapped: q4_0 when that
+     * is tight, q8_0 (half of f16, near lossless) on light tiers or modest headroom, f16 otherwise.
+     */
+    public LlamaInference.KvCacheType recommendKvCacheType(ModelInfo info, long modelBytes) {
+        long headroomMb = getAvailableRamMb() - modelBytes / (1024L * 1024L);
+        boolean lightTier = info != null && (info.tier == Tier.LIGHT || info.tier == Tier.ULTRA_LIGHT);
+        if (headroomMb < 768) return LlamaInference.KvCacheType.Q4_0;
+        if (headroomMb < (lightTier ? 3072 : 2048)) return LlamaInference.KvCacheType.Q8_0;
+        return LlamaInference.KvCacheType.F16;
+    }
+
     public boolean canLoadModel(ModelInfo info) {
         long availableMb = getAvailableRamMb();
         return availableMb > (info.estimatedRamBytes / (1024L * 1024L));
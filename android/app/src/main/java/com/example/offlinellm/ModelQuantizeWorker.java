@@ -0,0 +1,139 @@
+package com.example.offlinellm;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts a downloaded model to a smaller quantization on the device. The source is decrypted
+ * as a stream and the native side converts it a chunk of rows at a time straight into the
+ * encrypted output, so memory stays bounded and no plaintext reaches storage. Progress is
+ * reported like a download, so the models list shows it the same way.
+ */
+public class ModelQuantizeWorker extends Worker {
+    private static final String TAG = "ModelQuantizeWorker";
+
+    private static boolean isLibraryLoaded = false;
+
+    static {
+        try {
+            System.loadLibrary("llama-jni");
+            isLibraryLoaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.e(TAG, "Failed to load llama-jni library: " + e.getMessage());
+        }
+    }
+
+    private String fileName;
+    private long lastProgressTime;
+
+    public ModelQuantizeWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        String sourceFileName = getInputData().getString("sourceFileName");
+        String quantization = getInputData().getString("quantization");
+        fileName = getInputData().getString("fileName");
+
+        Context ctx = getApplicationContext();
+        ModelManager manager = ModelManager.getInstance(ctx);
+        if (sourceFileName == null || fileName == null || quantization == null) {
+            return Result.failure(new Data.Builder().putString("error", "Missing source or target").build());
+        }
+        if (!isLibraryLoaded) {
+            manager.onWorkerFailed(fileName, "Native library unavailable");
+            return Result.failure(new Data.Builder().putString("error", "Native library unavailable").build());
+        }
+
+        ModelManager.Quantization type = ModelManager.Quantization.valueOf(quantization);
+        File sourceFile = new File(ctx.getFilesDir(), sourceFileName);
+        File targetFile = new File(ctx.getFilesDir(), fileName);
+        // Plaintext output the job used to stage in the cache
+        new File(ctx.getCacheDir(), fileName + ".tmp").delete();
+
+        if (!sourceFile.exists()) {
+            manager.onWorkerFailed(fileName, "Source model not found");
+            return Result.failure(new Data.Builder().putString("error", "Source model not found").build());
+        }
+        ModelManager.ModelInfo sourceInfo = manager.getModelByFileName(sourceFileName);
+        double sourceBits = sourceInfo != null ? ModelManager.bitsPerWeight(sourceInfo.name) : 0;
+        long sourceBytes = sourceFile.length();
+        long outputBytes = sourceBits > 0 ? (long) (sourceBytes * type.bitsPerWeight / sourceBits) : sourceBytes;
+
+        if (ctx.getFilesDir().getUsableSpace() < (long) (outputBytes * 1.1)) {
+            return fail(manager, "Insufficient storage for quantization");
+        }
+
+        Log.d(TAG, "Quantizing " + sourceFileName + " to " + type.label);
+        // The encrypted output cannot be opened over an existing file
+        if (targetFile.exists()) targetFile.delete();
+        try {
+            // Half the cores: this runs in the background and should not stall the chat
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            int rc;
+            try (InputStream in = SecurityHelper.openDecryptedStream(ctx, sourceFile);
+                 OutputStream out = SecurityHelper.openEncryptedStream(ctx, targetFile)) {
+                rc = nativeQuantize(in, out, type.ordinal(), threads);
+            }
+            if (isStopped()) {
+                targetFile.delete();
+                return Result.failure();
+            }
+            if (rc != 0) throw new Exception(quantizeError(rc));
+
+            Log.d(TAG, "Quantized model saved to: " + targetFile.getAbsolutePath());
+            manager.onWorkerCompleted(fileName, targetFile);
+            return Result.success();
+        } catch (Exception e) {
+            Log.e(TAG, "Quantization failed", e);
+            if (targetFile.exists()) targetFile.delete();
+            manager.onWorkerFailed(fileName, e.getMessage());
+            return Result.failure(new Data.Builder().putString("error", String.valueOf(e.getMessage())).build());
+        }
+    }
+
+    private Result fail(ModelManager manager, String errorMsg) {
+        Log.e(TAG, errorMsg);
+        manager.onWorkerFailed(fileName, errorMsg);
+        return Result.failure(new Data.Builder().putString("error", errorMsg).build());
+    }
+
+    // Return codes of nativeQuantize
+    private static String quantizeError(int rc) {
+        switch (rc) {
+            case -1: return "Source is not a GGUF model";
+            case -2: return "Failed to read the source model";
+            case -3: return "Failed to write the quantized model";
+            case -5: return "Model layout not supported for quantization";
+            default: return "Quantization failed (" + rc + ")";
+        }
+    }
+
+    // Called from nativeQuantize on the worker thread after each chunk of tensor data
+    private void onQuantizeProgress(long done, long total) {
+        long now = System.currentTimeMillis();
+        if (total <= 0 || now - lastProgressTime < 500) return;
+        lastProgressTime = now;
+        // 100 is left for the completed model
+        int progress = (int) Math.min(99, done * 100 / total);
+        setProgressAsync(new Data.Builder()
+                .putInt("progress", progress)
+                .putLong("downloaded", done)
+                .putLong("total", total)
+                .putString("fileName", fileName)
+                .build());
+        ModelManager.getInstance(getApplicationContext()).onWorkerProgress(fileName, progress, done, total);
+    }
+
+    // Exceptions from either stream propagate once it returns
+    private native int nativeQuantize(InputStream in, OutputStream out, int type, int nThreads);
+}
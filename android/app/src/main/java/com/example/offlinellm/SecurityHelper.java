@@ -11,19 +11,8 @@ import java.io.OutputStream;
 
 public class SecurityHelper {
     public static void encryptFile(Context context, File sourceFile, File encryptedFile) throws Exception {
-        MasterKey masterKey = new MasterKey.Builder(context)
-                .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
-                .build();
-
-        EncryptedFile encFile = new EncryptedFile.Builder(
-                context,
-                encryptedFile,
-                masterKey,
-                EncryptedFile.FileEncryptionScheme.AES256_GCM_HKDF_4KB
-        ).build();
-
         try (InputStream in = new FileInputStream(sourceFile);
-             OutputStream out = encFile.openFileOutput()) {
+             OutputStream out = openEncryptedStream(context, encryptedFile)) {
             byte[] buffer = new byte[8192];
             int length;
             while ((length = in.read(buffer)) > 0) {
@@ -33,24 +22,42 @@ public class SecurityHelper {
     }
 
     public static void decryptFile(Context context, File encryptedFile, File targetFile) throws Exception {
+        try (OutputStream out = new FileOutputStream(targetFile)) {
+            decryptTo(context, encryptedFile, out);
+        }
+    }
+
+    /** Streams the plaintext of encryptedFile into out, which is left open. */
+    public static void decryptTo(Context context, File encryptedFile, OutputStream out) throws Exception {
+        try (InputStream in = openDecryptedStream(context, encryptedFile)) {
+            byte[] buffer = new byte[65536]; // 64KB buffer for faster I/O
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+        }
+    }
+
+    /** Plaintext of encryptedFile, read front to back; the stream cannot seek. */
+    public static InputStream openDecryptedStream(Context context, File encryptedFile) throws Exception {
+        return encryptedFile(context, encryptedFile).openFileInput();
+    }
+
+    /** Writes encryptedFile, which must not exist yet, from plaintext written to the stream. */
+    public static OutputStream openEncryptedStream(Context context, File encryptedFile) throws Exception {
+        return encryptedFile(context, encryptedFile).openFileOutput();
+    }
+
+    private static EncryptedFile encryptedFile(Context context, File file) throws Exception {
         MasterKey masterKey = new MasterKey.Builder(context)
                 .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
                 .build();
 
-        EncryptedFile encFile = new EncryptedFile.Builder(
+        return new EncryptedFile.Builder(
                 context,
-                encryptedFile,
+                file,
                 masterKey,
                 EncryptedFile.FileEncryptionScheme.AES256_GCM_HKDF_4KB
         ).build();
-
-        try (InputStream in = encFile.openFileInput();
-               OutputStream out = new FileOutputStream(targetFile)) {
-            byte[] buffer = new byte[65536]; // 64KB buffer for faster I/O
-            int length;
-            while ((length = in.read(buffer)) > 0) {
-                out.write(buffer, 0, length);
-            }
-        }
     }
 }
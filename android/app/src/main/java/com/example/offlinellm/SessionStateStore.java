@@ -0,0 +1,134 @@
+package com.example.offlinellm;
+
+import android.content.Context;
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Disk cache for serialized KV state, one entry per chat session and model.
+ * Each entry is a native state file plus the templated turns it was built from.
+ * Entries are evicted least-recently-used first once the disk budget is exceeded.
+ */
+public class SessionStateStore {
+    private static final String TAG = "SessionStateStore";
+    private static final String DIR_NAME = "kv_sessions";
+    private static final String STATE_EXT = ".kv";
+    private static final String TURNS_EXT = ".turns";
+    private static final long DEFAULT_BUDGET_BYTES = 512L * 1024L * 1024L;
+
+    private final File dir;
+    private final long budgetBytes;
+    private final Gson gson = new Gson();
+
+    public SessionStateStore(Context context) {
+        this(context, DEFAULT_BUDGET_BYTES);
+    }
+
+    public SessionStateStore(Context context, long budgetBytes) {
+        this.dir = new File(context.getCacheDir(), DIR_NAME);
+        this.budgetBytes = budgetBytes;
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    public File stateFile(String sessionId, String modelFileName) {
+        return new File(dir, key(sessionId, modelFileName) + STATE_EXT);
+    }
+
+    private File turnsFile(String sessionId, String modelFileName) {
+        return new File(dir, key(sessionId, modelFileName) + TURNS_EXT);
+    }
+
+    private static String key(String sessionId, String modelFileName) {
+        return sanitize(sessionId) + "__" + sanitize(modelFileName);
+    }
+
+    private static String sanitize(String value) {
+        return value == null ? "" : value.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    public void writeTurns(String sessionId, String modelFileName, List<String> turns) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(turnsFile(sessionId, modelFileName))) {
+            fos.write(gson.toJson(turns).getBytes("UTF-8"));
+        }
+    }
+
+    public List<String> readTurns(String sessionId, String modelFileName) {
+        File file = turnsFile(sessionId, modelFileName);
+        if (!file.exists()) return null;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int n = fis.read(buffer, offset, buffer.length - offset);
+                if (n < 0) break;
+                offset += n;
+            }
+            Type listType = new TypeToken<List<String>>(){}.getType();
+            return gson.fromJson(new String(buffer, 0, offset, "UTF-8"), listType);
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading turns for " + sessionId, e);
+            return null;
+        }
+    }
+
+    public void touch(String sessionId, String modelFileName) {
+        long now = System.currentTimeMillis();
+        stateFile(sessionId, modelFileName).setLastModified(now);
+        turnsFile(sessionId, modelFileName).setLastModified(now);
+    }
+
+    public void remove(String sessionId, String modelFileName) {
+        stateFile(sessionId, modelFileName).delete();
+        turnsFile(sessionId, modelFileName).delete();
+    }
+
+    /** Drops the saved state of a session for every model. */
+    public void removeSession(String sessionId) {
+        String prefix = sanitize(sessionId) + "__";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if (files == null) return;
+        for (File f : files) f.delete();
+    }
+
+    public void clear() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) f.delete();
+    }
+
+    /** Evicts the least recently used entries until the store fits its budget. */
+    public void trimToBudget(File keep) {
+        File[] states = dir.listFiles((d, name) -> name.endsWith(STATE_EXT));
+        if (states == null) return;
+
+        List<File> entries = new ArrayList<>(Arrays.asList(states));
+        entries.sort(Comparator.comparingLong(File::lastModified));
+
+        long total = 0;
+        for (File state : entries) total += state.length() + sidecar(state).length();
+
+        for (File state : entries) {
+            if (total <= budgetBytes) break;
+            if (state.equals(keep)) continue;
+            total -= state.length() + sidecar(state).length();
+            Log.d(TAG, "Evicting KV state: " + state.getName());
+            sidecar(state).delete();
+            state.delete();
+        }
+    }
+
+    private static File sidecar(File state) {
+        String name = state.getName();
+        return new File(state.getParentFile(), name.substring(0, name.length() - STATE_EXT.length()) + TURNS_EXT);
+    }
+}
@@ -67,6 +67,10 @@ public class SettingsActivity extends AppCompatActivity {
                 "Response creativity (0.0-1.0)", prefs.getFloat("temperature", 0.7f));
         settingsList.add(temperature);
 
+        SettingItem warmUp = new SettingItem(SettingItem.TYPE_SWITCH, "Warm Up Model",
+                "Preload weights after loading for a fast first reply", prefs.getBoolean("warm_up_model", true));
+        settingsList.add(warmUp);
+
         // Chat Settings
         SettingItem chatSection = new SettingItem(SettingItem.TYPE_HEADER, "Chat Settings");
         settingsList.add(chatSection);
@@ -0,0 +1,38 @@
+package com.example.offlinellm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Calibrated compute thread counts, one entry per model and device. Calibration runs on the
+ * first load of a model; later loads reuse the saved counts and skip it.
+ */
+public class ThreadTuningStore {
+    private static final String PREFS_NAME = "thread_tuning";
+
+    private final SharedPreferences prefs;
+
+    public ThreadTuningStore(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Includes the device so a restored backup from another phone calibrates again
+    private static String key(String modelFileName) {
+        return (Build.HARDWARE + "_" + Build.MODEL + "__" + modelFileName).replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /** Saved {decode, prefill} thread counts, or {0, 0} when the model was never calibrated here. */
+    public int[] load(String modelFileName) {
+        String k = key(modelFileName);
+        return new int[] { prefs.getInt(k + "_decode", 0), prefs.getInt(k + "_prefill", 0) };
+    }
+
+    public void save(String modelFileName, int decodeThreads, int prefillThreads) {
+        String k = key(modelFileName);
+        prefs.edit()
+                .putInt(k + "_decode", decodeThreads)
+                .putInt(k + "_prefill", prefillThreads)
+                .apply();
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.offlinellm;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental UTF-8 decoder for streamed token bytes. Token pieces can end in the middle of a
+ * multibyte character; the incomplete tail is kept and completed by the next chunk.
+ * Buffers are reused, so decoding a chunk only allocates the resulting String.
+ */
+public class Utf8StreamDecoder {
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer bytes = ByteBuffer.allocate(1024);
+    private CharBuffer chars = CharBuffer.allocate(1024);
+
+    /** Decodes the remaining bytes of in, consuming them. Returns "" while a character is incomplete. */
+    public String decode(ByteBuffer in) {
+        if (bytes.remaining() < in.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(bytes.position() + in.remaining() + 1024);
+            bytes.flip();
+            bigger.put(bytes);
+            bytes = bigger;
+        }
+        bytes.put(in);
+        bytes.flip();
+
+        // A UTF-8 byte never yields more than one UTF-16 char
+        if (chars.capacity() < bytes.remaining()) chars = CharBuffer.allocate(bytes.capacity());
+        chars.clear();
+        decoder.decode(bytes, chars, false);
+        bytes.compact();
+        chars.flip();
+        return chars.toString();
+    }
+}